@@ -0,0 +1,145 @@
+package edu.msViz.msHttpApi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content codings of HTTP responses. The coding is negotiated from the request's
+ * Accept-Encoding header, and its compression level chosen by the size of the payload:
+ * small payloads are not worth compressing and large ones are compressed fastest,
+ * so that compression never costs more time than it saves on the network.
+ */
+enum ContentEncoding {
+    IDENTITY("identity"),
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    // payloads smaller than this are sent uncompressed
+    private static final long MIN_COMPRESSED_NUM_BYTES = 1024;
+
+    // largest payload compressed at each level of LEVELS, larger payloads use the last level
+    private static final long[] LEVEL_MAX_NUM_BYTES = { 64 * 1024, 1024 * 1024 };
+    private static final int[] LEVELS = { 6, 3, Deflater.BEST_SPEED };
+
+    // size of the compressor's output buffer
+    private static final int BUFFER_NUM_BYTES = 16384;
+
+    // value of the Content-Encoding header
+    final String token;
+
+    ContentEncoding(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Chooses the coding of a response, the compressed coding with the highest
+     * quality in the Accept-Encoding header, ties preferring gzip. The wildcard
+     * gives its quality to the codings the header does not list (RFC 9110 12.5.3)
+     * @param acceptEncoding value of the request's Accept-Encoding header, may be null
+     * @param numBytes (estimated) size of the payload
+     * @return negotiated coding, IDENTITY if there is none or the payload is small
+     */
+    static ContentEncoding negotiate(String acceptEncoding, long numBytes) {
+        if (acceptEncoding == null || numBytes < MIN_COMPRESSED_NUM_BYTES)
+            return IDENTITY;
+
+        // quality of each coding, -1 if it is not listed
+        double gzipQuality = -1;
+        double deflateQuality = -1;
+        double anyQuality = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException ex) {
+                        quality = 0;
+                    }
+                    // qualities range from 0 to 1, anything else is malformed
+                    if (!(quality >= 0 && quality <= 1))
+                        quality = 0;
+                }
+            }
+
+            if (name.equals(GZIP.token))
+                gzipQuality = quality;
+            else if (name.equals(DEFLATE.token))
+                deflateQuality = quality;
+            else if (name.equals("*"))
+                anyQuality = quality;
+        }
+        if (gzipQuality < 0)
+            gzipQuality = anyQuality;
+        if (deflateQuality < 0)
+            deflateQuality = anyQuality;
+
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality)
+            return GZIP;
+        if (deflateQuality > 0)
+            return DEFLATE;
+        return IDENTITY;
+    }
+
+    /**
+     * Wraps a response stream so that written bytes are encoded. Closing the
+     * returned stream finishes the encoding and closes the response stream.
+     * @param out response stream
+     * @param numBytes (estimated) size of the payload, selects the compression level
+     * @return encoding stream
+     * @throws IOException if the encoding could not be started
+     */
+    OutputStream wrap(OutputStream out, long numBytes) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new LeveledGZIPOutputStream(out, compressionLevel(numBytes));
+            case DEFLATE:
+                return new LeveledDeflaterOutputStream(out, compressionLevel(numBytes));
+            default:
+                return out;
+        }
+    }
+
+    /* Looks up the compression level of a payload size */
+    private static int compressionLevel(long numBytes) {
+        int i = 0;
+        while (i < LEVEL_MAX_NUM_BYTES.length && numBytes > LEVEL_MAX_NUM_BYTES[i])
+            i++;
+        return LEVELS[i];
+    }
+
+    /**
+     * GZIP stream compressing at a given level
+     */
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_NUM_BYTES);
+            this.def.setLevel(level);
+        }
+    }
+
+    /**
+     * zlib stream compressing at a given level, releasing its deflater when closed
+     */
+    private static class LeveledDeflaterOutputStream extends DeflaterOutputStream {
+        LeveledDeflaterOutputStream(OutputStream out, int level) {
+            super(out, new Deflater(level), BUFFER_NUM_BYTES);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.def.end();
+            }
+        }
+    }
+}
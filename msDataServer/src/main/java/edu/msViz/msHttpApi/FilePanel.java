@@ -131,7 +131,8 @@ class FilePanel extends JPanel {
                 {
                     // attempt to create mzTree
                     frame.dataServer.setMzTree(frame.mzTree);
-                    frame.mzTree.load(filePath, SummarizationStrategyFactory.Strategy.WeightedStriding);
+                    // weighted reservoir sampling lets summary queries merge the rank ordered node blocks
+                    frame.mzTree.load(filePath, SummarizationStrategyFactory.Strategy.WeightedReservoirSampling);
 
                     LOGGER.log(Level.INFO, "MzTree load time: " + (System.currentTimeMillis() - start));
 
@@ -0,0 +1,87 @@
+package edu.msViz.msHttpApi;
+
+import edu.msViz.mzTree.PointStore;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams query results to an output stream as JSON, one buffer at a time.
+ * Each thread has its own JsonPointWriter, whose buffer is reused from one
+ * response to the next, so a response of any size is written without allocating.
+ */
+final class JsonPointWriter {
+
+    private static final ThreadLocal<JsonPointWriter> WRITERS = ThreadLocal.withInitial(JsonPointWriter::new);
+
+    // size of the buffer handed to the output stream
+    private static final int BUFFER_NUM_BYTES = 16384;
+
+    // longest text of one point: its separator, brackets, 5 numbers and their
+    // separators, and room for the closing bracket of the array
+    private static final int MAX_POINT_NUM_BYTES = 3 + 5 * (ShortestDecimal.MAX_NUM_BYTES + 1);
+
+    // typical size of one point's text, for estimating the size of a response
+    private static final int TYPICAL_POINT_NUM_BYTES = 52;
+
+    private final byte[] buffer = new byte[BUFFER_NUM_BYTES];
+
+    private JsonPointWriter() {}
+
+    /**
+     * @return the calling thread's writer
+     */
+    static JsonPointWriter forCurrentThread() {
+        return WRITERS.get();
+    }
+
+    /**
+     * Estimates the size of the JSON text of a number of points
+     * @param numPoints number of points
+     * @return estimated size in bytes
+     */
+    static long estimateNumBytes(int numPoints) {
+        return 2 + (long) numPoints * TYPICAL_POINT_NUM_BYTES;
+    }
+
+    /**
+     * Writes a portion of a point store as [[pointId,traceId,mz,rt,intensity], ...]
+     * @param msData Mass spec dataset
+     * @param numPoints Number of points to write, 0 for no limit
+     * @param out stream receiving the JSON text, not closed
+     * @throws IOException if the stream could not be written
+     */
+    void write(PointStore msData, int numPoints, OutputStream out) throws IOException {
+        // numPoints == 0 implies no limit
+        if (numPoints == 0)
+            numPoints = Integer.MAX_VALUE;
+
+        int count = Math.min(numPoints, msData.size());
+        byte[] buf = this.buffer;
+        int pos = 0;
+
+        buf[pos++] = '[';
+        for (int i = 0; i < count; i++) {
+            if (pos > BUFFER_NUM_BYTES - MAX_POINT_NUM_BYTES) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+
+            if (i > 0)
+                buf[pos++] = ',';
+            buf[pos++] = '[';
+            pos = ShortestDecimal.writeInt(msData.getPointID(i), buf, pos);
+            buf[pos++] = ',';
+            pos = ShortestDecimal.writeInt(msData.getMeta1(i), buf, pos);
+            buf[pos++] = ',';
+            pos = ShortestDecimal.writeDouble(msData.getMz(i), buf, pos);
+            buf[pos++] = ',';
+            pos = ShortestDecimal.writeFloat(msData.getRt(i), buf, pos);
+            buf[pos++] = ',';
+            pos = ShortestDecimal.writeDouble(msData.getIntensity(i), buf, pos);
+            buf[pos++] = ']';
+        }
+        buf[pos++] = ']';
+
+        out.write(buf, 0, pos);
+    }
+}
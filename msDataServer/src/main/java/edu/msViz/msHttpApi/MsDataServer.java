@@ -4,8 +4,11 @@ import net.sf.json.JSONObject;
 import javax.servlet.http.HttpServletResponse;
 import edu.msViz.mzTree.*;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Comparator;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.locks.ReentrantLock;
@@ -25,10 +28,28 @@ public final class MsDataServer {
     
     // path to API root
     private static final String API_ROOT = "/api/v2";
+    
+    // media type of the binary point format, see writeBinary
+    private static final String BINARY_MEDIA_TYPE = "application/octet-stream";
+    
+    // version of the binary point format, written to its header
+    private static final int BINARY_FORMAT_VERSION = 1;
+
+    // size of the chunks the binary point format is written in, a multiple of every value size
+    private static final int BINARY_CHUNK_NUM_BYTES = 16384;
+
+    // number of points a tile is summarized to when not requested
+    private static final int DEFAULT_TILE_NUM_POINTS = 2000;
 
     // MzTree data model
     private MzTree mzTree;
     
+    // summarized tiles of mzTree
+    private final TileCache tileCache = new TileCache();
+    
+    // results of queries to mzTree
+    private final QueryCache queryCache = new QueryCache();
+    
     // mutual exclusion lock (fair) for updating/saving
     private final ReentrantLock updateSaveLock = new ReentrantLock(true);
     
@@ -65,7 +86,11 @@ public final class MsDataServer {
         
         spark.get(API_ROOT + "/getpoints", this::getPoints);        
         
+        spark.get(API_ROOT + "/tile", this::getTile);
+        
         spark.get(API_ROOT + "/filestatus", this::fileStatus);
+        
+        spark.get(API_ROOT + "/cachestats", this::cacheStats);
                 
     } // END startServer
 
@@ -73,6 +98,8 @@ public final class MsDataServer {
         try {
             updateSaveLock.lock();
             this.mzTree = newTree;
+            this.tileCache.setMzTree(newTree);
+            this.queryCache.setMzTree(newTree);
         }
         finally {
             updateSaveLock.unlock();
@@ -93,12 +120,17 @@ public final class MsDataServer {
      *      rtmin -> float : lower rt query bound
      *      rtmax -> float : upper rt query bound
      *      numpoints -> int : number of points to return
+     *      intmin -> double : (optional) lower intensity query bound
+     *      intmax -> double : (optional) upper intensity query bound
+     *      format -> string : (optional) "bin" for the binary format, also selected
+     *                         by an Accept header of application/octet-stream
      * 
      * @param request Spark request object containing HTTP request components
      * @param response Spark response object returned to requester
      * @return Server message
+     * @throws IOException if the response could not be written
      */
-    private Object getPoints(Request request, Response response){
+    private Object getPoints(Request request, Response response) throws IOException {
 
         // no mzTree assigned or not open yet
         if (mzTree == null || mzTree.getLoadStatus() == ImportState.ImportStatus.NONE) {
@@ -124,7 +156,7 @@ public final class MsDataServer {
                 // get request parameters (query bounds)
                 double mzmin, mzmax;
                 float rtmin, rtmax;
-                double intmin = 0;
+                double intmin, intmax;
                 int numPoints;
                 try{
                     // parse paramaters from request url
@@ -133,19 +165,25 @@ public final class MsDataServer {
                     rtmin = Float.parseFloat(request.queryParams("rtmin"));
                     rtmax = Float.parseFloat(request.queryParams("rtmax"));
                     numPoints = Integer.parseInt(request.queryParams("numpoints"));
+                    
+                    // intensity bounds are optional, absent means unbounded
+                    String intminParam = request.queryParams("intmin");
+                    String intmaxParam = request.queryParams("intmax");
+                    intmin = (intminParam == null) ? 0 : Double.parseDouble(intminParam);
+                    intmax = (intmaxParam == null) ? 0 : Double.parseDouble(intmaxParam);
 
                     // numPoints == 0 means no limit
                     numPoints = numPoints == 0 ? Integer.MAX_VALUE : numPoints;
                 }
-                // catch cases where parameter not included
-                catch (NullPointerException ex)
+                // catch cases where parameter not included or not a number
+                catch (NullPointerException | NumberFormatException ex)
                 {
                     response.status(HttpServletResponse.SC_BAD_REQUEST);
                     return "One or more URL parameters missing.";
                 }
 
                 // ensure a valid range
-                if(mzmax < mzmin || rtmax < rtmin)
+                if(mzmax < mzmin || rtmax < rtmin || (intmax != 0 && intmax < intmin))
                 {
                     response.status(HttpServletResponse.SC_BAD_REQUEST);
                     return "Invalid data range requested.";
@@ -154,24 +192,102 @@ public final class MsDataServer {
                 // query the mzTree for points within the bounds
                 //long start = System.currentTimeMillis();
 
-                List<MsDataPoint> queryResults = mzTree.query(mzmin, mzmax, rtmin, rtmax, numPoints);
+                PointStore queryResults = queryCache.query(mzTree, mzmin, mzmax, rtmin, rtmax, intmin, intmax, numPoints);
+
+                // respond with HTTP 200 OK
+                response.status(HttpServletResponse.SC_OK);
+                return writePoints(request, response, queryResults, numPoints);
+
+            // unknown status type
+            default:
+                response.status(HttpServletResponse.SC_NO_CONTENT);
+                return "";
+        }
+    } // END getPoints
+
+    /**
+     * Processes a request for the summarized points of a tile, see TileCache
+     * 
+     * API ENDPOINT: GET /tile
+     * HTTP GET PARAMETERS: 
+     *      level -> int : tile level, the root's bounds are split into 2^level tiles per axis
+     *      mz -> int : index of the tile along mz
+     *      rt -> int : index of the tile along rt
+     *      numpoints -> int : (optional) number of points to summarize the tile to
+     *      format -> string : (optional) "bin" for the binary format, as for getpoints
+     * 
+     * @param request Spark request object containing HTTP request components
+     * @param response Spark response object returned to requester
+     * @return Server message
+     * @throws IOException if the response could not be written
+     */
+    private Object getTile(Request request, Response response) throws IOException {
+        
+        // read the tree once, it may be replaced while the request is served
+        MzTree tree = mzTree;
+
+        // no mzTree assigned or not open yet
+        if (tree == null || tree.getLoadStatus() == ImportState.ImportStatus.NONE) {
+            response.status(HttpServletResponse.SC_NO_CONTENT);
+            return "No file has been selected.";
+        }
+
+        switch (tree.getLoadStatus()) {
+
+            // "loading" status types
+            case PARSING:
+            case CONVERTING:
+            case LOADING_MZTREE:
+                response.status(HttpServletResponse.SC_CONFLICT);
+                return "The server is selecting or processing a file.";
+
+            // "error" status types
+            case ERROR:
+                response.status(HttpServletResponse.SC_NOT_ACCEPTABLE);
+                return "There was a problem opening the file.";
+
+            case READY:
+                int level, mzIndex, rtIndex, numPoints;
+                try{
+                    // parse paramaters from request url
+                    level = Integer.parseInt(request.queryParams("level"));
+                    mzIndex = Integer.parseInt(request.queryParams("mz"));
+                    rtIndex = Integer.parseInt(request.queryParams("rt"));
+                    String numPointsParam = request.queryParams("numpoints");
+                    numPoints = (numPointsParam == null) ? DEFAULT_TILE_NUM_POINTS : Integer.parseInt(numPointsParam);
+                }
+                // catch cases where parameter not included or not a number
+                catch (NumberFormatException ex)
+                {
+                    response.status(HttpServletResponse.SC_BAD_REQUEST);
+                    return "One or more URL parameters missing.";
+                }
 
-                // serialize query results as JSON
+                // ensure a tile of the grid
+                if(level < 0 || level > TileCache.MAX_LEVEL || numPoints <= 0
+                        || mzIndex < 0 || mzIndex >= (1 << level) || rtIndex < 0 || rtIndex >= (1 << level))
+                {
+                    response.status(HttpServletResponse.SC_BAD_REQUEST);
+                    return "Invalid tile requested.";
+                }
 
-                StringBuilder queryResultsJSON = JSONify(queryResults,numPoints,true);
+                PointStore tile = tileCache.get(tree, level, mzIndex, rtIndex, numPoints);
+                if(tile == null)
+                {
+                    response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    return "There was a problem loading the points.";
+                }
 
                 // respond with HTTP 200 OK
                 response.status(HttpServletResponse.SC_OK);
-
-                // format points as JSON
-                return queryResultsJSON.toString();
+                return writePoints(request, response, tile, numPoints);
 
             // unknown status type
             default:
                 response.status(HttpServletResponse.SC_NO_CONTENT);
                 return "";
         }
-    } // END getPoints
+    } // END getTile
 
     /**
      * Query on the status of the data model
@@ -235,50 +351,158 @@ public final class MsDataServer {
         }
     } // END fileStatus
 
+    /**
+     * Reports the hit rates and sizes of the server's caches
+     * 
+     * API ENDPOINT: GET /cachestats
+     * 
+     * @param request Spark request object containing HTTP request components
+     * @param response Spark response object returned to requester
+     * @return Server message
+     */
+    private Object cacheStats(Request request, Response response){
+        // respond with HTTP 200 OK
+        response.status(HttpServletResponse.SC_OK);
+
+        // serialize payload as JSON
+        JSONObject payload = new JSONObject();
+        payload.put("query", cacheStatsJSON(queryCache.getResults()));
+        payload.put("tile", cacheStatsJSON(tileCache.getTiles()));
+
+        // the tree's point cache, once a file is open
+        MzTree tree = mzTree;
+        if(tree != null && tree.pointCache != null)
+            payload.put("point", cacheStatsJSON(tree.pointCache.getBlocks()));
+
+        return payload;
+    } // END cacheStats
+
     /*****************************************************
     ||                      HELPERS                     ||
     *****************************************************/
     
     /**
-     * Serializes a portio of an array of MsDataPoint objects into JSON format
+     * Writes points as the response payload, in the binary format if requested or else
+     * as JSON, compressed if the client accepts it and the payload is large enough
+     * @param request Spark request object
+     * @param response Spark response object, with its status set
+     * @param msData Mass spec dataset
+     * @param numPoints Number of points to write
+     * @return empty body, the payload has been streamed
+     * @throws IOException if the response could not be written
+     */
+    private static Object writePoints(Request request, Response response, PointStore msData, int numPoints) throws IOException
+    {
+        response.header("Vary", "Accept, Accept-Encoding");
+
+        boolean binary = acceptsBinary(request);
+        int count = Math.min(numPoints, msData.size());
+        long numBytes = binary ? 8 + 24L * count : JsonPointWriter.estimateNumBytes(count);
+        response.type(binary ? BINARY_MEDIA_TYPE : "application/json");
+
+        ContentEncoding encoding = ContentEncoding.negotiate(request.headers("Accept-Encoding"), numBytes);
+        if(encoding != ContentEncoding.IDENTITY)
+            response.header("Content-Encoding", encoding.token);
+
+        // the payload is streamed, closing the stream completes the response
+        try(OutputStream out = encoding.wrap(response.raw().getOutputStream(), numBytes))
+        {
+            if(binary)
+                writeBinary(msData, numPoints, out);
+            else
+                JsonPointWriter.forCurrentThread().write(msData, numPoints, out);
+        }
+        return "";
+    }
+
+    /**
+     * Serializes the statistics of a cache into JSON format
+     * @param cache cache to report on
+     */
+    private static JSONObject cacheStatsJSON(LruCache<?, ?> cache)
+    {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitrate", (hits + misses > 0) ? (double) hits / (hits + misses) : 0);
+        stats.put("entries", cache.size());
+        stats.put("bytes", cache.getWeight());
+        stats.put("maxbytes", cache.getMaxWeight());
+        return stats;
+    }
+
+    /**
+     * Checks whether a request asks for the binary point format, with a format=bin
+     * parameter or by accepting application/octet-stream
+     * @param request Spark request object
+     * @return true if the binary format is requested
+     */
+    private static boolean acceptsBinary(Request request)
+    {
+        if("bin".equals(request.queryParams("format")))
+            return true;
+        
+        String accept = request.headers("Accept");
+        return accept != null && accept.contains(BINARY_MEDIA_TYPE);
+    }
+    
+    /**
+     * Writes a portion of a point store in the binary columnar format,
+     * all values little-endian and each column aligned to its value size
+     *
+     * HEADER   : COUNT (4, int), VERSION (4, int)
+     * COLUMNS  : MZ (8 * COUNT, double), RT (4 * COUNT, float), INTEN (4 * COUNT, float),
+     *            POINTID (4 * COUNT, int), TRACEID (4 * COUNT, int)
+     * The payload is written in fixed size chunks rather than built whole
      * @param msData Mass spec dataset
      * @param numPoints Number of points to return
-     * @param includeExtras If True pointID and meta1 are included in serialization
+     * @param out stream the payload is written to
+     * @throws IOException if the payload could not be written
      */
-    private static StringBuilder JSONify(List<MsDataPoint> msData, int numPoints, boolean includeExtras)
+    private static void writeBinary(PointStore msData, int numPoints, OutputStream out) throws IOException
     {
         // numPoints == 0 implies no limit
         if(numPoints == 0)
             numPoints = Integer.MAX_VALUE;
         
-        StringBuilder JSON = new StringBuilder("[");
-        if(!includeExtras)
-            for(int i = 0; i < numPoints && i < msData.size(); i++)
-            {
-                MsDataPoint curPoint = msData.get(i);
-                JSON.append("[").append(curPoint.mz).append(",")
-                        .append(curPoint.rt).append(",")
-                        .append(curPoint.intensity).append("],");
-            }
-                   
-        else
-            for(int i = 0; i < numPoints && i < msData.size(); i++)
-            {
-                MsDataPoint curPoint = msData.get(i);
-                JSON.append("[")
-                        .append(curPoint.pointID).append(",")
-                        .append(curPoint.meta1).append(",")
-                        .append(curPoint.mz).append(",")
-                        .append(curPoint.rt).append(",")
-                        .append(curPoint.intensity).append("],");
-            }
+        int count = Math.min(numPoints, msData.size());
+        ByteBuffer buf = ByteBuffer.allocate(BINARY_CHUNK_NUM_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(count);
+        buf.putInt(BINARY_FORMAT_VERSION);
         
-        if(msData.size() > 0)
-            JSON.replace(JSON.length()-1, JSON.length(), "]");
-        else 
-            JSON.append("]");
+        // every value size divides the chunk size, so a full chunk has no room left
+        for(int i = 0; i < count; i++)
+            putChunked(buf, out).putDouble(msData.getMz(i));
+        for(int i = 0; i < count; i++)
+            putChunked(buf, out).putFloat(msData.getRt(i));
+        for(int i = 0; i < count; i++)
+            putChunked(buf, out).putFloat((float) msData.getIntensity(i));
+        for(int i = 0; i < count; i++)
+            putChunked(buf, out).putInt(msData.getPointID(i));
+        for(int i = 0; i < count; i++)
+            putChunked(buf, out).putInt(msData.getMeta1(i));
         
-        return JSON;
+        out.write(buf.array(), 0, buf.position());
+    }
+
+    /**
+     * Writes out a chunk of the binary point format once it is full
+     * @param buf chunk being filled
+     * @param out stream the chunk is written to
+     * @return buf, with room for the next value
+     * @throws IOException if the chunk could not be written
+     */
+    private static ByteBuffer putChunked(ByteBuffer buf, OutputStream out) throws IOException
+    {
+        if(!buf.hasRemaining())
+        {
+            out.write(buf.array(), 0, buf.position());
+            buf.clear();
+        }
+        return buf;
     }
 
     /**
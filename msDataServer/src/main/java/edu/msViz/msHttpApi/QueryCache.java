@@ -0,0 +1,146 @@
+package edu.msViz.msHttpApi;
+
+import edu.msViz.mzTree.LruCache;
+import edu.msViz.mzTree.MzTree;
+import edu.msViz.mzTree.PointStore;
+
+/**
+ * Results of MzTree queries, keyed by their normalized bounds, number of points and
+ * summarizer so that repeated views are answered from memory. Results are cached
+ * least recently used first under a byte budget.
+ */
+final class QueryCache {
+
+    // system property holding the cache's memory budget in bytes
+    static final String BUDGET_PROPERTY = "msViz.queryCacheBytes";
+
+    // fraction of the heap budgeted when the property is not set
+    private static final double DEFAULT_HEAP_FRACTION = 1.0 / 16;
+
+    // largest fraction of the budget one result may take, larger results (e.g. full
+    // resolution exports) are not cached rather than flushing every other view
+    private static final double MAX_RESULT_FRACTION = 1.0 / 4;
+
+    // estimated memory overhead of a cached result beyond its points
+    private static final int MEM_NUM_BYTES_PER_RESULT = 160;
+
+    private final LruCache<Key, PointStore> results;
+
+    // tree whose results may be cached, results of any other tree are returned but not cached
+    private MzTree mzTree;
+
+    /**
+     * Default constructor, budgets the number of bytes in the BUDGET_PROPERTY
+     * system property or else a fraction of the heap
+     */
+    QueryCache() {
+        this.results = new LruCache<>(Long.getLong(BUDGET_PROPERTY, (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION)),
+                QueryCache::resultBytes);
+    }
+
+    /**
+     * Queries a tree for points within bounds, see MzTree.query, answering from
+     * the cache when an equal query has been made. The returned store is shared
+     * and must not be modified.
+     * @param mzTree tree to query
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param intMin query intensity lower bound
+     * @param intMax query intensity upper bound
+     * @param numPoints number of points to be returned
+     * @return points within the bounds, null if they could not be loaded
+     */
+    PointStore query(MzTree mzTree, double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax, int numPoints) {
+        double[] bounds = mzTree.normalizeBounds(mzMin, mzMax, rtMin, rtMax, intMin, intMax);
+        Key key = new Key(mzTree, bounds, numPoints);
+        PointStore result = this.results.get(key);
+        if (result != null)
+            return result;
+
+        result = mzTree.query(mzMin, mzMax, rtMin, rtMax, intMin, intMax, numPoints);
+        if (result != null && resultBytes(result) <= this.results.getMaxWeight() * MAX_RESULT_FRACTION) {
+            // a query racing a switch of trees must not cache (and hold on to) the previous tree
+            synchronized (this) {
+                if (mzTree == this.mzTree)
+                    this.results.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes every cached result and sets the tree whose results are cached from now on,
+     * hit and miss counts are kept
+     * @param mzTree the server's current tree, may be null
+     */
+    synchronized void setMzTree(MzTree mzTree) {
+        this.mzTree = mzTree;
+        this.results.clear();
+    }
+
+    /**
+     * @return cached results and their statistics
+     */
+    LruCache<?, ?> getResults() {
+        return this.results;
+    }
+
+    private static long resultBytes(PointStore result) {
+        return (long) result.capacity() * PointStore.MEM_NUM_BYTES_PER_POINT + MEM_NUM_BYTES_PER_RESULT;
+    }
+
+    /**
+     * Identifies a query of a tree, trees are compared by identity so that
+     * results of a previously opened tree can never be served
+     */
+    private static final class Key {
+        private final MzTree mzTree;
+        private final Class<?> summarizer;
+        private final double mzMin;
+        private final double mzMax;
+        private final double rtMin;
+        private final double rtMax;
+        private final double intMin;
+        private final double intMax;
+        private final int numPoints;
+
+        Key(MzTree mzTree, double[] bounds, int numPoints) {
+            this.mzTree = mzTree;
+            this.summarizer = (mzTree.summarizer != null) ? mzTree.summarizer.getClass() : null;
+            this.mzMin = bounds[0];
+            this.mzMax = bounds[1];
+            this.rtMin = bounds[2];
+            this.rtMax = bounds[3];
+            this.intMin = bounds[4];
+            this.intMax = bounds[5];
+            this.numPoints = numPoints;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return this.mzTree == other.mzTree && this.summarizer == other.summarizer
+                    && Double.compare(this.mzMin, other.mzMin) == 0 && Double.compare(this.mzMax, other.mzMax) == 0
+                    && Double.compare(this.rtMin, other.rtMin) == 0 && Double.compare(this.rtMax, other.rtMax) == 0
+                    && Double.compare(this.intMin, other.intMin) == 0 && Double.compare(this.intMax, other.intMax) == 0
+                    && this.numPoints == other.numPoints;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(this.mzTree);
+            hash = 31 * hash + System.identityHashCode(this.summarizer);
+            hash = 31 * hash + Double.hashCode(this.mzMin);
+            hash = 31 * hash + Double.hashCode(this.mzMax);
+            hash = 31 * hash + Double.hashCode(this.rtMin);
+            hash = 31 * hash + Double.hashCode(this.rtMax);
+            hash = 31 * hash + Double.hashCode(this.intMin);
+            hash = 31 * hash + Double.hashCode(this.intMax);
+            return 31 * hash + this.numPoints;
+        }
+    }
+}
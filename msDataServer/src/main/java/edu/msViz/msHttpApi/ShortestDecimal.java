@@ -0,0 +1,300 @@
+package edu.msViz.msHttpApi;
+
+import java.math.BigInteger;
+
+/**
+ * Writes numbers as ASCII JSON text straight into a byte array, without allocating.
+ * Doubles and floats are written with the fewest decimal digits that parse back to
+ * the same value, found with the Schubfach algorithm (R. Giulietti, "The Schubfach way
+ * to render doubles"). Values are laid out like JavaScript's Number.toString: plain
+ * decimals for leading digit exponents from -7 to 20, scientific notation otherwise.
+ */
+final class ShortestDecimal {
+
+    // longest text written for one number, e.g. -0.0000001234567890123456
+    static final int MAX_NUM_BYTES = 32;
+
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    // range of decimal exponents k of the 10^-k approximations
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+
+    // g = floor(10^-k 2^-r) + 1 for the r meeting 2^125 <= g < 2^126, as pairs of
+    // its upper (g1) and lower (g0) 63 bits
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+    static {
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int r = flog2pow10(-k) - 125;
+            BigInteger num = BigInteger.TEN.pow(Math.max(-k, 0)).shiftLeft(Math.max(-r, 0));
+            BigInteger den = BigInteger.TEN.pow(Math.max(k, 0)).shiftLeft(Math.max(r, 0));
+            BigInteger g = num.divide(den).add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+            G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+        }
+    }
+
+    // double format: significand bits, minimum exponent and the smallest normal significand
+    private static final int DOUBLE_PRECISION = 53;
+    private static final int DOUBLE_Q_MIN = -1074;
+    private static final long DOUBLE_C_MIN = 1L << (DOUBLE_PRECISION - 1);
+    private static final long DOUBLE_C_TINY = 3;
+
+    // float format, see above
+    private static final int FLOAT_PRECISION = 24;
+    private static final int FLOAT_Q_MIN = -149;
+    private static final long FLOAT_C_MIN = 1L << (FLOAT_PRECISION - 1);
+    private static final long FLOAT_C_TINY = 8;
+
+    private ShortestDecimal() {}
+
+    /**
+     * Writes a double, null if it is not finite
+     * @param v value to write
+     * @param buf destination, with at least MAX_NUM_BYTES free from pos
+     * @param pos index to write at
+     * @return index following the written text
+     */
+    static int writeDouble(double v, byte[] buf, int pos) {
+        if (Double.isNaN(v) || Double.isInfinite(v))
+            return writeNull(buf, pos);
+
+        long bits = Double.doubleToRawLongBits(v);
+        if (bits < 0)
+            buf[pos++] = '-';
+
+        long t = bits & (DOUBLE_C_MIN - 1);
+        int bq = (int) (bits >>> (DOUBLE_PRECISION - 1)) & 0x7FF;
+        if (bq != 0) {
+            int mq = -DOUBLE_Q_MIN + 1 - bq;
+            long c = DOUBLE_C_MIN | t;
+            // integers below 2^53 are their own shortest decimal
+            if (0 < mq && mq < DOUBLE_PRECISION) {
+                long f = c >> mq;
+                if (f << mq == c)
+                    return writeDecimal(f, 0, buf, pos);
+            }
+            return toDecimal(-mq, c, 0, DOUBLE_C_MIN, DOUBLE_Q_MIN, buf, pos);
+        }
+        if (t != 0) {
+            return (t < DOUBLE_C_TINY)
+                    ? toDecimal(DOUBLE_Q_MIN, 10 * t, -1, DOUBLE_C_MIN, DOUBLE_Q_MIN, buf, pos)
+                    : toDecimal(DOUBLE_Q_MIN, t, 0, DOUBLE_C_MIN, DOUBLE_Q_MIN, buf, pos);
+        }
+        buf[pos++] = '0';
+        return pos;
+    }
+
+    /**
+     * Writes a float, null if it is not finite
+     * @param v value to write
+     * @param buf destination, with at least MAX_NUM_BYTES free from pos
+     * @param pos index to write at
+     * @return index following the written text
+     */
+    static int writeFloat(float v, byte[] buf, int pos) {
+        if (Float.isNaN(v) || Float.isInfinite(v))
+            return writeNull(buf, pos);
+
+        int bits = Float.floatToRawIntBits(v);
+        if (bits < 0)
+            buf[pos++] = '-';
+
+        long t = bits & (FLOAT_C_MIN - 1);
+        int bq = (bits >>> (FLOAT_PRECISION - 1)) & 0xFF;
+        if (bq != 0) {
+            int mq = -FLOAT_Q_MIN + 1 - bq;
+            long c = FLOAT_C_MIN | t;
+            if (0 < mq && mq < FLOAT_PRECISION) {
+                long f = c >> mq;
+                if (f << mq == c)
+                    return writeDecimal(f, 0, buf, pos);
+            }
+            return toDecimal(-mq, c, 0, FLOAT_C_MIN, FLOAT_Q_MIN, buf, pos);
+        }
+        if (t != 0) {
+            return (t < FLOAT_C_TINY)
+                    ? toDecimal(FLOAT_Q_MIN, 10 * t, -1, FLOAT_C_MIN, FLOAT_Q_MIN, buf, pos)
+                    : toDecimal(FLOAT_Q_MIN, t, 0, FLOAT_C_MIN, FLOAT_Q_MIN, buf, pos);
+        }
+        buf[pos++] = '0';
+        return pos;
+    }
+
+    /**
+     * Writes an int
+     * @param v value to write
+     * @param buf destination, with at least MAX_NUM_BYTES free from pos
+     * @param pos index to write at
+     * @return index following the written text
+     */
+    static int writeInt(int v, byte[] buf, int pos) {
+        long f = v;
+        if (f < 0) {
+            buf[pos++] = '-';
+            f = -f;
+        }
+        int len = numDigits(f);
+        writeDigits(f, len, len, buf, pos);
+        return pos + len;
+    }
+
+    /*
+     * Finds the shortest decimal rounding to c 2^q, preferring the closest one, for a
+     * significand c of the format whose smallest normal significand is cMin. The decimal
+     * exponent of the result is offset by dk when c was scaled by 10 for tiny values.
+     */
+    private static int toDecimal(int q, long c, int dk, long cMin, int qMin, byte[] buf, int pos) {
+        // the rounding interval is closed when c is even, ties round to even
+        int out = (int) c & 0x1;
+
+        // c and its interval bounds in units of 2^(q-2)
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != cMin | q == qMin) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // the interval below a power of 2 is half as wide
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+
+        // scale by 10^-k, two fractional bits plus a sticky bit remain
+        int h = q + flog2pow10(-k) + 2;
+        long g1 = G[2 * (k - K_MIN)];
+        long g0 = G[2 * (k - K_MIN) + 1];
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        // try one digit fewer first
+        long s = vb >> 2;
+        if (s >= 100) {
+            long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin)
+                return writeDecimal(upin ? sp10 : tp10, k + dk, buf, pos);
+        }
+
+        // then whichever of s and s + 1 lies in the interval, the closer if both do
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win)
+            return writeDecimal(uin ? s : t, k + dk, buf, pos);
+
+        long cmp = vb - ((s + t) << 1);
+        return writeDecimal(cmp < 0 || (cmp == 0 && (s & 0x1) == 0) ? s : t, k + dk, buf, pos);
+    }
+
+    /* Writes f 10^e, f positive */
+    private static int writeDecimal(long f, int e, byte[] buf, int pos) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int len = numDigits(f);
+
+        // exponent of the leading digit
+        int dexp = e + len - 1;
+
+        if (dexp < -7 || dexp > 20) {
+            // d.dddE-x
+            writeDigits(f, len, 1, buf, pos);
+            pos += (len > 1) ? len + 1 : len;
+            buf[pos++] = 'E';
+            return writeInt(dexp, buf, pos);
+        }
+
+        if (e >= 0) {
+            // ddd000
+            writeDigits(f, len, len, buf, pos);
+            pos += len;
+            for (int i = 0; i < e; i++)
+                buf[pos++] = '0';
+            return pos;
+        }
+
+        if (dexp >= 0) {
+            // dd.ddd
+            writeDigits(f, len, dexp + 1, buf, pos);
+            return pos + len + 1;
+        }
+
+        // 0.000ddd
+        buf[pos++] = '0';
+        buf[pos++] = '.';
+        for (int i = -1; i > dexp; i--)
+            buf[pos++] = '0';
+        writeDigits(f, len, len, buf, pos);
+        return pos + len;
+    }
+
+    /* Writes the len digits of f, with a decimal point after the first pointAt digits if pointAt < len */
+    private static void writeDigits(long f, int len, int pointAt, byte[] buf, int pos) {
+        if (pointAt < len)
+            buf[pos + pointAt] = '.';
+        for (int i = len - 1; i >= 0; i--) {
+            buf[pos + ((i < pointAt) ? i : i + 1)] = (byte) ('0' + f % 10);
+            f /= 10;
+        }
+    }
+
+    private static int writeNull(byte[] buf, int pos) {
+        buf[pos++] = 'n';
+        buf[pos++] = 'u';
+        buf[pos++] = 'l';
+        buf[pos++] = 'l';
+        return pos;
+    }
+
+    private static int numDigits(long f) {
+        int len = 1;
+        for (long p = 10; len < 19 && f >= p; p *= 10)
+            len++;
+        return len;
+    }
+
+    /* Round to odd of g cp 2^-127, the sticky bit keeps inexact results off ties */
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (((z & MASK_63) + MASK_63) >>> 63);
+    }
+
+    /* Upper 64 bits of the 128 bit product, Math.multiplyHigh is not available in Java 8 */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+        long z0 = t >> 32;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    /* floor(e log10(2)) */
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    /* floor(e log10(2) + log10(3/4)) */
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) ((e * 661_971_961_083L - 274_743_187_321L) >> 41);
+    }
+
+    /* floor(e log2(10)) */
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+}
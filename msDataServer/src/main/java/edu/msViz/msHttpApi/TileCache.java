@@ -0,0 +1,144 @@
+package edu.msViz.msHttpApi;
+
+import edu.msViz.mzTree.LruCache;
+import edu.msViz.mzTree.MzTree;
+import edu.msViz.mzTree.PointStore;
+
+/**
+ * Summarized points of the tiles of a quantized grid over an MzTree's bounds. At level L
+ * the mz and rt ranges of the tree's root are each split into 2^L equal intervals, and
+ * tile (L, mzIndex, rtIndex) covers the half-open mz interval mzIndex by the half-open
+ * rt interval rtIndex (the last interval of each axis is closed), so every point lies in
+ * exactly one tile of a level. Tiles are cached least recently used first under a byte budget.
+ */
+final class TileCache {
+
+    // system property holding the cache's memory budget in bytes
+    static final String BUDGET_PROPERTY = "msViz.tileCacheBytes";
+
+    // fraction of the heap budgeted when the property is not set
+    private static final double DEFAULT_HEAP_FRACTION = 1.0 / 16;
+
+    // deepest tile level, 2^MAX_LEVEL tiles per axis
+    static final int MAX_LEVEL = 24;
+
+    // estimated memory overhead of a cached tile beyond its points
+    private static final int MEM_NUM_BYTES_PER_TILE = 128;
+
+    private final LruCache<Key, PointStore> tiles;
+
+    // tree whose tiles may be cached, tiles of any other tree are served but not cached
+    private MzTree mzTree;
+
+    /**
+     * Default constructor, budgets the number of bytes in the BUDGET_PROPERTY
+     * system property or else a fraction of the heap
+     */
+    TileCache() {
+        this.tiles = new LruCache<>(Long.getLong(BUDGET_PROPERTY, (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION)),
+                tile -> (long) tile.capacity() * PointStore.MEM_NUM_BYTES_PER_POINT + MEM_NUM_BYTES_PER_TILE);
+    }
+
+    /**
+     * Retrieves the summarized points of a tile, querying the tree if it is not cached.
+     * The returned store is shared and must not be modified.
+     * @param mzTree tree the tile belongs to
+     * @param level tile level, 0 to MAX_LEVEL
+     * @param mzIndex index of the tile's mz interval, 0 to 2^level - 1
+     * @param rtIndex index of the tile's rt interval, 0 to 2^level - 1
+     * @param numPoints number of points to summarize the tile to, positive
+     * @return points of the tile, null if they could not be loaded
+     */
+    PointStore get(MzTree mzTree, int level, int mzIndex, int rtIndex, int numPoints) {
+        Key key = new Key(mzTree, level, mzIndex, rtIndex, numPoints);
+        PointStore tile = this.tiles.get(key);
+        if (tile != null)
+            return tile;
+
+        int numTiles = 1 << level;
+        boolean lastMz = (mzIndex == numTiles - 1);
+        boolean lastRt = (rtIndex == numTiles - 1);
+        double mzMin = tileBound(mzTree.head.mzMin, mzTree.head.mzMax, mzIndex, numTiles);
+        double mzMax = lastMz ? mzTree.head.mzMax : tileBound(mzTree.head.mzMin, mzTree.head.mzMax, mzIndex + 1, numTiles);
+        float rtMin = (float) tileBound(mzTree.head.rtMin, mzTree.head.rtMax, rtIndex, numTiles);
+        float rtMax = lastRt ? mzTree.head.rtMax : (float) tileBound(mzTree.head.rtMin, mzTree.head.rtMax, rtIndex + 1, numTiles);
+
+        // query bounds are closed, points on an upper edge belong to the next tile, so the
+        // upper bounds are moved below the edge to summarize only the tile's own points
+        if (!lastMz)
+            mzMax = Math.nextDown(mzMax);
+        if (!lastRt)
+            rtMax = Math.nextDown(rtMax);
+
+        tile = mzTree.query(mzMin, mzMax, rtMin, rtMax, numPoints);
+        if (tile == null)
+            return null;
+        tile.trimToSize();
+
+        // a request racing a switch of trees must not cache (and hold on to) the previous tree
+        synchronized (this) {
+            if (mzTree == this.mzTree)
+                this.tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Removes every cached tile and sets the tree whose tiles are cached from now on
+     * @param mzTree the server's current tree, may be null
+     */
+    synchronized void setMzTree(MzTree mzTree) {
+        this.mzTree = mzTree;
+        this.tiles.clear();
+    }
+
+    /**
+     * @return cached tiles and their statistics
+     */
+    LruCache<?, ?> getTiles() {
+        return this.tiles;
+    }
+
+    /* Lower bound of the index'th of numTiles equal intervals of [min, max] */
+    private static double tileBound(double min, double max, int index, int numTiles) {
+        return min + (max - min) * index / numTiles;
+    }
+
+    /**
+     * Identifies a tile of a tree, trees are compared by identity so that
+     * tiles of a previously opened tree can never be served
+     */
+    private static final class Key {
+        private final MzTree mzTree;
+        private final int level;
+        private final int mzIndex;
+        private final int rtIndex;
+        private final int numPoints;
+
+        Key(MzTree mzTree, int level, int mzIndex, int rtIndex, int numPoints) {
+            this.mzTree = mzTree;
+            this.level = level;
+            this.mzIndex = mzIndex;
+            this.rtIndex = rtIndex;
+            this.numPoints = numPoints;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return this.mzTree == other.mzTree && this.level == other.level && this.mzIndex == other.mzIndex
+                    && this.rtIndex == other.rtIndex && this.numPoints == other.numPoints;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(this.mzTree);
+            hash = 31 * hash + this.level;
+            hash = 31 * hash + this.mzIndex;
+            hash = 31 * hash + this.rtIndex;
+            return 31 * hash + this.numPoints;
+        }
+    }
+}
@@ -1,71 +1,203 @@
 package edu.msViz.mzTree;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Base64;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
- * Decodes base64 encoded strings into double arrays
+ * Decodes base64 encoded, optionally zlib compressed binary data arrays into doubles.
+ * Each thread has its own Decoder, whose Inflater and scratch buffers are reused
+ * from one array to the next. Base64 data is handed out as views of the scratch and
+ * values are decoded into caller-owned, reusable arrays, so that decoding allocates
+ * no arrays once the buffers have grown to the largest spectrum.
  */
 public class Decoder {
+
+    private static final ThreadLocal<Decoder> DECODERS = ThreadLocal.withInitial(Decoder::new);
+
+    // value of each base64 character, -1 for characters outside of the alphabet
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+
+    // initial size of the scratch buffers, grown on demand
+    private static final int INITIAL_SCRATCH_NUM_BYTES = 8192;
+
+    // created on first use, only threads that inflate need one
+    private Inflater inflater;
+
+    // base64 decoded bytes of the arrays read since clearBase64, each handed out as a view
+    private byte[] base64Scratch = new byte[INITIAL_SCRATCH_NUM_BYTES];
+    private int base64NumBytes;
+
+    // inflated bytes of the array being decoded
+    private byte[] inflateScratch = new byte[INITIAL_SCRATCH_NUM_BYTES];
+
+    private Decoder() {}
+
     /**
-     * converts base64 string input to array of doubles
-     * @param input base64 encoded data
-     * @param isDouble flag to signal if data is 32 or 64 bit floating point
-     * @return decoded double array
+     * @return the calling thread's decoder
      */
-    public static double[] decodeUncompressed(String input, boolean isDouble) {
-        return decodeUncompressed(Base64.getDecoder().decode(input), isDouble);
+    public static Decoder forCurrentThread() {
+        return DECODERS.get();
     }
 
     /**
-     * converts array of bytes to corresponding array of doubles
-     * @param binArray array of bytes
-     * @param isDouble flag to signal if data is 32 or 64 bit floating point 
-     * @return decoded double array
+     * Releases the views returned by readBase64, their bytes are overwritten by the next reads
      */
-    public static double[] decodeUncompressed(byte[] binArray, boolean isDouble) {
-        ByteBuffer buf = ByteBuffer.wrap(binArray).order(ByteOrder.LITTLE_ENDIAN);
+    public void clearBase64() {
+        this.base64NumBytes = 0;
+    }
+
+    /**
+     * Reads the base64 text content of the element at reader, decoding it as it is streamed
+     * rather than materializing it as a String. Whitespace within the text is skipped.
+     * The decoded bytes follow those of previous reads in the scratch buffer, so the views
+     * of several arrays (e.g. of one spectrum) are valid at once, until clearBase64.
+     * @param reader xml stream reader positioned at the element's START_ELEMENT, left at its END_ELEMENT
+     * @return view of the decoded bytes, valid until this thread's decoder is cleared
+     * @throws XMLStreamException if the element contains child elements
+     * @throws DataFormatException if the text is not base64
+     */
+    public ByteBuffer readBase64(XMLStreamReader reader) throws XMLStreamException, DataFormatException {
+        int start = this.base64NumBytes;
+        int numBytes = start;
+
+        // bits of the current 4 character quantum
+        int quantum = 0;
+        int numQuantumChars = 0;
 
-        int bytesPer = isDouble ? 8 : 4;
-        double[] dataArray = new double[binArray.length / bytesPer];
+        while (reader.next() != XMLStreamReader.END_ELEMENT) {
+            int eventType = reader.getEventType();
+            if (eventType == XMLStreamReader.COMMENT || eventType == XMLStreamReader.PROCESSING_INSTRUCTION)
+                continue;
+            if (eventType != XMLStreamReader.CHARACTERS && eventType != XMLStreamReader.CDATA && eventType != XMLStreamReader.SPACE)
+                throw new XMLStreamException("Unexpected event in binary element: " + eventType, reader.getLocation());
 
-        for (int i = 0; i < dataArray.length; i++) {
-             dataArray[i] = isDouble ? buf.getDouble() : buf.getFloat();
+            // the reader's own buffer, only valid until the next event
+            char[] text = reader.getTextCharacters();
+            int end = reader.getTextStart() + reader.getTextLength();
+
+            // room for the bytes of this chunk's complete quanta
+            // (a grown buffer leaves earlier views on the previous one, whose bytes are unchanged)
+            int maxBytes = numBytes + (reader.getTextLength() / 4 + 1) * 3;
+            if (maxBytes > this.base64Scratch.length)
+                this.base64Scratch = Arrays.copyOf(this.base64Scratch, Math.max(maxBytes, this.base64Scratch.length * 2));
+            byte[] bytes = this.base64Scratch;
+
+            for (int i = reader.getTextStart(); i < end; i++) {
+                char c = text[i];
+                int value = (c < 128) ? BASE64_VALUES[c] : -1;
+                if (value >= 0) {
+                    quantum = (quantum << 6) | value;
+                    if (++numQuantumChars == 4) {
+                        bytes[numBytes++] = (byte) (quantum >> 16);
+                        bytes[numBytes++] = (byte) (quantum >> 8);
+                        bytes[numBytes++] = (byte) quantum;
+                        quantum = 0;
+                        numQuantumChars = 0;
+                    }
+                }
+                else if (c != '=' && !Character.isWhitespace(c))
+                    throw new DataFormatException("Invalid base64 character: " + c);
+            }
+        }
+
+        // a final partial quantum holds 1 or 2 bytes
+        if (numQuantumChars == 1)
+            throw new DataFormatException("Truncated base64 data");
+        if (numBytes + 2 > this.base64Scratch.length)
+            this.base64Scratch = Arrays.copyOf(this.base64Scratch, numBytes + 2);
+        if (numQuantumChars == 2) {
+            this.base64Scratch[numBytes++] = (byte) (quantum >> 4);
+        }
+        else if (numQuantumChars == 3) {
+            this.base64Scratch[numBytes++] = (byte) (quantum >> 10);
+            this.base64Scratch[numBytes++] = (byte) (quantum >> 2);
         }
-        return dataArray;
+
+        this.base64NumBytes = numBytes;
+        return ByteBuffer.wrap(this.base64Scratch, start, numBytes - start).slice();
     }
 
     /**
-     * converts zlib-compressed base-64 encoded data to array of doubles
-     * @param encoding base-64 encoded data
-     * @param isDouble flag to signal if data is 32 or 64 bit floating point 
-     * @return decoded double array
-     * @throws java.util.zip.DataFormatException
-     * @throws java.io.IOException
-     */ 
-    public static double[] decodeCompressed(String encoding, boolean isDouble) throws DataFormatException
-    {
-        // Decode the Base64 string into a byte array. 
-        byte[] binArray = Base64.getDecoder().decode(encoding);
-
-        // decompress zlib	
-        Inflater decompressor = new Inflater();
-        decompressor.setInput(binArray);
-
-        // Create an expandable byte array to hold the decompressed data
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(binArray.length);
-
-        // Decompress the data
-        byte[] buf = new byte[1024];
+     * Decodes an array's values into a reusable array, which is grown if they do not fit
+     * @param data base64 decoded binary data, from its position to its limit
+     * @param isCompressed flag to signal the data is zlib compressed
+     * @param isDouble flag to signal if data is 32 or 64 bit floating point
+     * @param values receives the values
+     * @throws DataFormatException if the data is corrupt
+     */
+    public void decode(ByteBuffer data, boolean isCompressed, boolean isDouble, Values values) throws DataFormatException {
+        int numValues = this.toValueBytes(data, isCompressed) / (isDouble ? 8 : 4);
+        if (numValues > values.array.length)
+            values.array = new double[numValues];
+
+        this.copyValues(data, isCompressed, isDouble, values.array, numValues);
+        values.length = numValues;
+    }
+
+    /* Inflates compressed data into inflateScratch, returns the number of value bytes */
+    private int toValueBytes(ByteBuffer data, boolean isCompressed) throws DataFormatException {
+        if (!isCompressed)
+            return data.remaining();
+
+        if (this.inflater == null)
+            this.inflater = new Inflater();
+        Inflater decompressor = this.inflater;
+        decompressor.reset();
+        decompressor.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+
+        int numBytes = 0;
         while (!decompressor.finished()) {
-            int count = decompressor.inflate(buf);
-            bos.write(buf, 0, count);
+            if (numBytes == this.inflateScratch.length)
+                this.inflateScratch = Arrays.copyOf(this.inflateScratch, this.inflateScratch.length * 2);
+
+            int count = decompressor.inflate(this.inflateScratch, numBytes, this.inflateScratch.length - numBytes);
+            if (count == 0 && (decompressor.needsInput() || decompressor.needsDictionary()))
+                throw new DataFormatException("Truncated zlib data");
+            numBytes += count;
+        }
+        return numBytes;
+    }
+
+    /* Converts the little endian value bytes of data (or of inflateScratch if compressed) */
+    private void copyValues(ByteBuffer data, boolean isCompressed, boolean isDouble, double[] values, int numValues) {
+        ByteBuffer buf = isCompressed ? ByteBuffer.wrap(this.inflateScratch) : data.duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (isDouble) {
+            buf.asDoubleBuffer().get(values, 0, numValues);
         }
-        return decodeUncompressed(bos.toByteArray(), isDouble);
+        else {
+            FloatBuffer floats = buf.asFloatBuffer();
+            for (int i = 0; i < numValues; i++)
+                values[i] = floats.get(i);
+        }
+    }
+
+    /**
+     * Decoded values of an array: the first length elements of a reusable array
+     */
+    public static final class Values {
+
+        /**
+         * Holds the values up to length, replaced by a larger array when a decode needs it
+         */
+        public double[] array = new double[0];
+
+        /**
+         * Number of decoded values
+         */
+        public int length;
     }
 }
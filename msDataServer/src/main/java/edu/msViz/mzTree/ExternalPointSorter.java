@@ -0,0 +1,306 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sorts any number of points with a bounded amount of memory. Points are buffered
+ * up to the run size, each full buffer is sorted and spilled to a temporary run file,
+ * and the runs are then merged as they are read back. Points are ordered by rt then mz,
+ * or by mz then rt, and the sort is stable: points with equal keys keep the order
+ * they were added in, so the result does not depend on the run size.
+ *
+ * RUN FORMAT (big endian, pointIDs are not kept)
+ * MZ (8, double), RT (4, float), INTEN (8, double), META1 (4, int)
+ */
+class ExternalPointSorter implements Closeable
+{
+    private static final Logger LOGGER = Logger.getLogger(ExternalPointSorter.class.getName());
+
+    // buffer size of each run file stream
+    private static final int IO_BUFFER_NUM_BYTES = 65536;
+
+    // sort order, rt then mz if true else mz then rt
+    private final boolean sortByRt;
+
+    // maximum number of points buffered in memory
+    private final int runSize;
+
+    // directory receiving the run files
+    private final Path runDirectory;
+
+    // spilled runs, in the order they were added
+    private final List<Path> runs = new ArrayList<>();
+
+    // points not yet spilled
+    private PointStore buffer;
+
+    // open run readers of the merge
+    private final List<RunReader> readers = new ArrayList<>();
+
+    /**
+     * Default constructor
+     * @param sortByRt sort order, rt then mz if true else mz then rt
+     * @param runSize maximum number of points to hold in memory
+     * @param runDirectory directory to write temporary run files in
+     */
+    ExternalPointSorter(boolean sortByRt, int runSize, Path runDirectory)
+    {
+        this.sortByRt = sortByRt;
+        this.runSize = Math.max(runSize, 1);
+        this.runDirectory = runDirectory;
+        this.buffer = new PointStore();
+    }
+
+    /**
+     * Adds a point, spilling the buffered points once the run size is reached
+     * @throws IOException if a run could not be written
+     */
+    void add(double mz, float rt, double intensity, int meta1) throws IOException
+    {
+        // grow no further than the run size
+        if (this.buffer.size() == this.buffer.capacity())
+            this.buffer.ensureCapacity((int) Math.min(this.runSize, this.buffer.capacity() * 2L));
+
+        this.buffer.add(0, mz, rt, intensity, meta1);
+        if (this.buffer.size() >= this.runSize)
+        {
+            this.spill(this.buffer);
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Sorts a store of points in place and spills it as a run of its own, without
+     * copying it into the buffer. Buffered points are spilled first to keep the
+     * order points were added in.
+     * @param points points to add, sorted by this call
+     * @throws IOException if a run could not be written
+     */
+    void addRun(PointStore points) throws IOException
+    {
+        if (!this.buffer.isEmpty())
+        {
+            this.spill(this.buffer);
+            this.buffer.clear();
+        }
+        this.spill(points);
+    }
+
+    /**
+     * Finishes adding points and opens the sorted sequence of every point added.
+     * Points that never left the buffer are sorted in memory without touching disk.
+     * @return cursor over the points in sort order
+     * @throws IOException if a run could not be written or read
+     */
+    PointCursor sorted() throws IOException
+    {
+        // nothing was spilled, the buffer is the whole sequence
+        if (this.runs.isEmpty())
+        {
+            sort(this.buffer, this.sortByRt);
+            PointStore points = this.buffer;
+            return new PointCursor() {
+                private int i = -1;
+
+                @Override
+                boolean next()
+                {
+                    if (this.i + 1 == points.size())
+                        return false;
+                    this.i++;
+                    this.mz = points.getMz(this.i);
+                    this.rt = points.getRt(this.i);
+                    this.intensity = points.getIntensity(this.i);
+                    this.meta1 = points.getMeta1(this.i);
+                    return true;
+                }
+            };
+        }
+
+        if (!this.buffer.isEmpty())
+            this.spill(this.buffer);
+        this.buffer = new PointStore();
+
+        // each queued reader holds its run's next point, ties go to the earlier run
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(this.runs.size(), this::compare);
+        for (int i = 0; i < this.runs.size(); i++)
+        {
+            RunReader reader = new RunReader(this.runs.get(i), i);
+            this.readers.add(reader);
+            if (reader.next())
+                queue.add(reader);
+        }
+
+        return new PointCursor() {
+            @Override
+            boolean next() throws IOException
+            {
+                RunReader reader = queue.poll();
+                if (reader == null)
+                    return false;
+
+                this.mz = reader.mz;
+                this.rt = reader.rt;
+                this.intensity = reader.intensity;
+                this.meta1 = reader.meta1;
+                if (reader.next())
+                    queue.add(reader);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Closes the run readers and deletes the run files
+     */
+    @Override
+    public void close()
+    {
+        for (RunReader reader : this.readers)
+        {
+            try {
+                reader.in.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Could not close run " + reader.runIndex, ex);
+            }
+        }
+        this.readers.clear();
+
+        for (Path run : this.runs)
+        {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Could not delete run file " + run, ex);
+            }
+        }
+        this.runs.clear();
+    }
+
+    /**
+     * @return number of runs spilled to disk
+     */
+    int getNumRuns()
+    {
+        return this.runs.size();
+    }
+
+    /* Sorts the points and writes them to a new run file */
+    private void spill(PointStore points) throws IOException
+    {
+        sort(points, this.sortByRt);
+
+        Path run = Files.createTempFile(this.runDirectory, "mzTree-run", ".tmp");
+        this.runs.add(run);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), IO_BUFFER_NUM_BYTES)))
+        {
+            for (int i = 0; i < points.size(); i++)
+            {
+                out.writeDouble(points.getMz(i));
+                out.writeFloat(points.getRt(i));
+                out.writeDouble(points.getIntensity(i));
+                out.writeInt(points.getMeta1(i));
+            }
+        }
+    }
+
+    /* Stable sort by the secondary key, then the primary key */
+    private static void sort(PointStore points, boolean sortByRt)
+    {
+        if (sortByRt)
+        {
+            points.sortByMz(0, points.size());
+            points.sortByRt(0, points.size());
+        }
+        else
+        {
+            points.sortByRt(0, points.size());
+            points.sortByMz(0, points.size());
+        }
+    }
+
+    /* Orders the current points of two runs, ties by run order */
+    private int compare(RunReader a, RunReader b)
+    {
+        int order = this.sortByRt
+                ? compareKeys(a.rt, a.mz, b.rt, b.mz)
+                : compareKeys(a.mz, a.rt, b.mz, b.rt);
+        return (order != 0) ? order : Integer.compare(a.runIndex, b.runIndex);
+    }
+
+    private static int compareKeys(double primaryA, double secondaryA, double primaryB, double secondaryB)
+    {
+        if (primaryA != primaryB)
+            return (primaryA < primaryB) ? -1 : 1;
+        if (secondaryA != secondaryB)
+            return (secondaryA < secondaryB) ? -1 : 1;
+        return 0;
+    }
+
+    /**
+     * Sequence of points in sort order, the current point's values are
+     * valid after next returns true
+     */
+    static abstract class PointCursor
+    {
+        double mz;
+        float rt;
+        double intensity;
+        int meta1;
+
+        /**
+         * Moves to the next point
+         * @return false if every point has been read
+         * @throws IOException if a run could not be read
+         */
+        abstract boolean next() throws IOException;
+    }
+
+    /**
+     * Reads the points of a run file one at a time
+     */
+    private static class RunReader extends PointCursor
+    {
+        private final DataInputStream in;
+        private final int runIndex;
+
+        RunReader(Path run, int runIndex) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), IO_BUFFER_NUM_BYTES));
+            this.runIndex = runIndex;
+        }
+
+        @Override
+        boolean next() throws IOException
+        {
+            try {
+                this.mz = this.in.readDouble();
+            } catch (EOFException ex) {
+                return false;
+            }
+            this.rt = this.in.readFloat();
+            this.intensity = this.in.readDouble();
+            this.meta1 = this.in.readInt();
+            return true;
+        }
+    }
+}
@@ -67,11 +67,17 @@ public class ImportState extends Observable
         return workDone;
     }
 
-    public void setWorkDone(int workDone) {
-        this.workDone = workDone;
-        if (this.workDone % updateInterval == 0) {
+    public synchronized void setWorkDone(int workDone) {
+        // concurrent workers may report out of order, progress only advances
+        if (workDone < this.workDone) {
+            return;
+        }
+        
+        // notify when an update interval boundary is crossed, work may advance by more than one unit at a time
+        if (workDone / updateInterval != this.workDone / updateInterval) {
             this.setChanged();
         }
+        this.workDone = workDone;
         this.notifyObservers();
     }
 
@@ -0,0 +1,259 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread safe least recently used cache bounded by the total weight of its values
+ * (typically their size in bytes). Entries may be pinned, exempting them from eviction.
+ * Cached values are shared between callers and must not be modified.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruCache<K, V>
+{
+    // unpinned entries in access order, least recently used first
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, .75f, true);
+
+    // pinned entries, never evicted
+    private final Map<K, V> pinned = new HashMap<>();
+
+    // maximum total weight of all entries, pinned included
+    private final long maxWeight;
+
+    // weight of a value
+    private final ToLongFunction<? super V> weigher;
+
+    // receives evicted entries, outside of the cache's lock
+    private volatile BiConsumer<? super K, ? super V> evictionListener;
+
+    // current total weight of entries / of pinned entries
+    private long weight;
+    private long pinnedWeight;
+
+    // lookup statistics
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Default constructor
+     * @param maxWeight maximum total weight of the cached values
+     * @param weigher computes the weight of a value
+     */
+    public LruCache(long maxWeight, ToLongFunction<? super V> weigher)
+    {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Sets a listener to be informed of each entry evicted to make room,
+     * and of each value too heavy to be cached at all
+     * @param evictionListener listener, null for none
+     */
+    public void setEvictionListener(BiConsumer<? super K, ? super V> evictionListener)
+    {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Looks up a value, marking it as most recently used
+     * @param key key of the value
+     * @return the cached value, or null if not cached
+     */
+    public synchronized V get(K key)
+    {
+        V value = this.pinned.get(key);
+        if (value == null)
+            value = this.entries.get(key);
+
+        if (value != null)
+            this.hitCount++;
+        else
+            this.missCount++;
+        return value;
+    }
+
+    /**
+     * Checks for a value without counting a lookup or changing its recency
+     * @param key key of the value
+     * @return true if a value is cached for key
+     */
+    public synchronized boolean contains(K key)
+    {
+        return this.pinned.containsKey(key) || this.entries.containsKey(key);
+    }
+
+    /**
+     * Caches a value, evicting least recently used entries to stay within the maximum weight.
+     * A value heavier than the maximum weight is not cached and goes straight to the eviction listener.
+     * @param key key of the value
+     * @param value value to cache
+     */
+    public void put(K key, V value)
+    {
+        long valueWeight = this.weigher.applyAsLong(value);
+        List<Map.Entry<K, V>> evicted;
+
+        synchronized (this)
+        {
+            evicted = this.putEntry(key, value, valueWeight);
+        }
+
+        this.notifyEvicted(evicted);
+    }
+
+    /**
+     * Caches a value that is never evicted. At most half of the maximum weight
+     * may be pinned, beyond that the value is cached as an ordinary entry.
+     * @param key key of the value
+     * @param value value to pin
+     */
+    public void pin(K key, V value)
+    {
+        long valueWeight = this.weigher.applyAsLong(value);
+
+        List<Map.Entry<K, V>> evicted;
+        synchronized (this)
+        {
+            if (this.pinnedWeight + valueWeight > this.maxWeight / 2)
+                evicted = this.putEntry(key, value, valueWeight);
+            else
+                evicted = this.pinEntry(key, value, valueWeight);
+        }
+
+        this.notifyEvicted(evicted);
+    }
+
+    /* Adds an unpinned entry, returns the entries evicted to make room */
+    private List<Map.Entry<K, V>> putEntry(K key, V value, long valueWeight)
+    {
+        if (this.pinned.containsKey(key))
+            return Collections.emptyList();
+        if (valueWeight > this.maxWeight)
+            return Collections.singletonList(new AbstractMap.SimpleImmutableEntry<>(key, value));
+
+        V previous = this.entries.put(key, value);
+        if (previous != null)
+            this.weight -= this.weigher.applyAsLong(previous);
+        this.weight += valueWeight;
+
+        return this.evict();
+    }
+
+    /* Adds a pinned entry, returns the entries evicted to make room */
+    private List<Map.Entry<K, V>> pinEntry(K key, V value, long valueWeight)
+    {
+        V previous = this.entries.remove(key);
+        if (previous != null)
+            this.weight -= this.weigher.applyAsLong(previous);
+        previous = this.pinned.put(key, value);
+        if (previous != null) {
+            this.weight -= this.weigher.applyAsLong(previous);
+            this.pinnedWeight -= this.weigher.applyAsLong(previous);
+        }
+
+        this.weight += valueWeight;
+        this.pinnedWeight += valueWeight;
+
+        return this.evict();
+    }
+
+    /**
+     * Removes an entry, pinned or not. The removed entry is not reported as evicted.
+     * @param key key of the value
+     * @return the removed value, or null if none was cached
+     */
+    public synchronized V remove(K key)
+    {
+        V value = this.pinned.remove(key);
+        if (value != null)
+            this.pinnedWeight -= this.weigher.applyAsLong(value);
+        else
+            value = this.entries.remove(key);
+
+        if (value != null)
+            this.weight -= this.weigher.applyAsLong(value);
+        return value;
+    }
+
+    /**
+     * Removes every entry, pinned or not. Evicted entries are not reported.
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.pinned.clear();
+        this.weight = 0;
+        this.pinnedWeight = 0;
+    }
+
+    /**
+     * @return number of cached entries
+     */
+    public synchronized int size() {
+        return this.entries.size() + this.pinned.size();
+    }
+
+    /**
+     * @return total weight of cached entries
+     */
+    public synchronized long getWeight() {
+        return this.weight;
+    }
+
+    public long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    /**
+     * @return number of lookups that found a value
+     */
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * @return number of lookups that did not find a value
+     */
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /* Removes least recently used entries until within the maximum weight */
+    private List<Map.Entry<K, V>> evict()
+    {
+        List<Map.Entry<K, V>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<K, V>> it = this.entries.entrySet().iterator();
+        while (this.weight > this.maxWeight && it.hasNext())
+        {
+            Map.Entry<K, V> eldest = it.next();
+            it.remove();
+            this.weight -= this.weigher.applyAsLong(eldest.getValue());
+            evicted.add(eldest);
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(List<Map.Entry<K, V>> evicted)
+    {
+        BiConsumer<? super K, ? super V> listener = this.evictionListener;
+        if (listener == null)
+            return;
+        for (Map.Entry<K, V> entry : evicted)
+            listener.accept(entry.getKey(), entry.getValue());
+    }
+}
@@ -7,17 +7,11 @@ package edu.msViz.mzTree;
 
 /**
  * Class embodiment of a Mass Spectrometry data point
+ * Bulk point data is held in PointStore, this class is for single points
  * @author Kyle
  */
 public class MsDataPoint
 {
-    // number of bytes required to hold point in main memory
-    // calculated using profiler
-    // point -> 42 bytes per point object
-    // HashMap$Node -> 32 bytes per point
-    // Integer (used as hash key) -> 16 bytes per point
-    public static byte MEM_NUM_BYTES_PER_POINT = 90;
-    
     // number of bytes required to store point on disk (not counting ID)
     // mz: 8 bytes
     // rt: 4 bytes
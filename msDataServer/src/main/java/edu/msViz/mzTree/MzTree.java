@@ -12,15 +12,22 @@ import edu.msViz.mzTree.storage.StorageFacadeFactory;
 import edu.msViz.mzTree.summarization.SummarizationStrategy;
 import edu.msViz.mzTree.summarization.SummarizationStrategyFactory;
 import edu.msViz.mzTree.summarization.SummarizationStrategyFactory.Strategy;
+import edu.msViz.mzTree.summarization.WeightedReservoirSampling;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -29,6 +36,7 @@ import com.opencsv.CSVWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import org.apache.commons.lang.StringUtils;
 
@@ -50,13 +58,30 @@ public final class MzTree
     // 45056B is 11 4096B disk blocks, 88 512B disk blocks, and 2048 points.
     public static final int NUM_POINTS_PER_NODE = 8192;
 
-    // minimum branching factor for a partitioned load
+    // minimum branching factor for an external load
     // ensures that we don't have a tiny branching factor that produces
     // a very tall tree (such as 2...)
     private static final int MINIMUM_BRANCHING_FACTOR = 4;
     
-    // fraction of heap alloted for MsDataPoints
-    private static final float HEAP_FRACTION = .5f;
+    // fraction of heap alloted for the points of a build
+    // (each point is budgeted its columns plus the sorting overhead, see PointStore)
+    // an external load holds at most this many points at a time
+    private static final float HEAP_FRACTION = .7f;
+    
+    // system property capping the number of threads that scan the nodes of queries,
+    // half of the processors by default
+    public static final String QUERY_PARALLELISM_PROPERTY = "msViz.queryParallelism";
+    
+    // executor shared by the node scans of all queries, its parallelism is the cap on
+    // the threads a query occupies, leaving the other processors to concurrent requests
+    private static final ForkJoinPool QUERY_POOL = new ForkJoinPool(Math.max(1,
+            Integer.getInteger(QUERY_PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors() / 2)));
+    
+    // fewest nodes worth handing to a pool thread when checking children against query bounds
+    private static final int MIN_NODES_PER_BOUNDS_TASK = 256;
+    
+    // fewest nodes worth handing to a pool thread when scanning (and possibly loading) their points
+    private static final int MIN_NODES_PER_POINTS_TASK = 4;
     
     // the branching factor of the tree (number of children per root/hidden node)
     public int branchingFactor;
@@ -82,6 +107,10 @@ public final class MzTree
     
     // import progress monitor
     private ImportState importState;
+    
+    // whether summary queries sample by merging node blocks in rank order rather than
+    // running the summarizer, see setRankOrdered
+    private boolean rankSampled;
         
     /**
      * No argument constructor for basic initialization
@@ -150,25 +179,25 @@ public final class MzTree
             // mzml load
             else
             {
-                // initialize mzmlParser
-                MzmlParser mzmlParser = new MzmlParser(filePath);
-                
-                // if the user specified a memory-conservative load
-                // and the partitioned load is necessary then perform a partitioned load
-                if(this.partitionedLoadConfiguration(mzmlParser, Paths.get(filePath)))
+                // initialize mzmlParser, closing it stops its decoding threads should the load fail
+                try (MzmlParser mzmlParser = new MzmlParser(filePath))
                 {
-
-                    this.partitionedLoad(mzmlParser);
-                }
-
-                // else perform standard, memory-apathetic load
-                else
-                {
-                    // initialize mzmlParser
-                    this.standardLoad(mzmlParser, filePath);
+                    // if the dataset will not fit in memory then build the tree out of core
+                    if(this.externalLoadConfiguration(mzmlParser))
+                    {
+                        this.externalLoad(mzmlParser, Paths.get(filePath));
+                    }
+
+                    // else perform standard, memory-apathetic load
+                    else
+                    {
+                        // initialize mzmlParser
+                        this.standardLoad(mzmlParser, filePath);
+                    }
                 }
             }
 
+            this.pinUpperLevels();
             importState.setImportStatus(ImportStatus.READY);
             LOGGER.log(Level.INFO, "Tree Build Real Time: " + (System.currentTimeMillis() - start));
             
@@ -186,9 +215,16 @@ public final class MzTree
             
             // create mzTree from existing file
 
-            // recursively build tree from root node
-            this.head = dataStorage.loadRootNode();
-            this.recursiveTreeBuilder(this.head, 0);
+            // read the whole node table at once, then assemble the tree from the root node
+            Map<Integer, List<MzTreeNode>> nodesByParent = dataStorage.loadNodesByParent();
+            List<MzTreeNode> rootNodes = nodesByParent.get(0);
+            if(rootNodes == null || rootNodes.isEmpty())
+                throw new DataFormatException("No root node found in " + filePath);
+            
+            this.head = rootNodes.get(0);
+            this.recursiveTreeBuilder(this.head, 0, nodesByParent);
+            this.setRankOrdered(this.dataStorage.isRankOrdered());
+            this.pinUpperLevels();
 
             // inform importState that mzTree load has finished
             this.importState.setImportStatus(ImportStatus.READY);
@@ -199,11 +235,12 @@ public final class MzTree
      * Recursively builds the tree structure starting with the root node.
      * Retrieves and constructs the MzTreeNode specified by the
      * @param node Node from which to start recursive MzTree construction
+     * @param nodesByParent all nodes of the tree, keyed by their parent's ID
      */
-    private void recursiveTreeBuilder(MzTreeNode node, int curDepth) throws Exception
+    private void recursiveTreeBuilder(MzTreeNode node, int curDepth, Map<Integer, List<MzTreeNode>> nodesByParent)
     {
         // get all child nodes
-        List<MzTreeNode> childNodes = dataStorage.loadChildNodes(node);
+        List<MzTreeNode> childNodes = nodesByParent.getOrDefault(node.nodeID, Collections.emptyList());
 
         // leaf nodes update tree height (results in largest height)
         if(childNodes.isEmpty())
@@ -213,7 +250,7 @@ public final class MzTree
         for(MzTreeNode childNode : childNodes)
         {
             // recursive call at +1 depth
-            this.recursiveTreeBuilder(childNode, curDepth+1);
+            this.recursiveTreeBuilder(childNode, curDepth+1, nodesByParent);
 
             // add reference to child and keep min/max mz/rt/int
             node.addChildGetBounds(childNode);
@@ -221,51 +258,156 @@ public final class MzTree
     }
 
     /**
-     * Performs a partitioned load of the data set, resulting in conservative memory consumption
-     * @param mzmlParser input mzml file parser
-     * @throws XMLStreamException
-     * @throws DataFormatException
-     * @throws IOException 
+     * Records whether the tree's points are stored in rank order, i.e. its leaves were ordered by
+     * PointRank as they were built. Summary queries then merge node blocks by rank only if the
+     * summarizer is weighted reservoir sampling: the highest ranked points within the bounds are
+     * an A-Res sample weighted by intensity alone, the sample the summarizer takes of the points
+     * within the bounds at query time. Any other strategy, which may be unweighted or stride
+     * through the points, runs on the points within the bounds as in an unranked tree.
+     * @param rankOrdered whether the tree's leaves are in rank order
      */
-    private void partitionedLoad(MzmlParser mzmlParser) throws XMLStreamException, DataFormatException, IOException
+    private void setRankOrdered(boolean rankOrdered)
     {
+        this.rankSampled = rankOrdered && this.summarizer instanceof WeightedReservoirSampling;
+        this.pointCache.setRankOrdered(this.rankSampled);
+    }
 
-        LOGGER.log(Level.INFO, "Partitioned load w/ " + this.branchingFactor + " partitions");
-        
-        // signal to the import monitor that tree building has begun
-        this.importState.setImportStatus(ImportStatus.CONVERTING);
+    /**
+     * Pins the points of the root and level 1 nodes in the point cache,
+     * every summary query begins at these levels
+     */
+    private void pinUpperLevels()
+    {
+        List<MzTreeNode> upperNodes = new ArrayList<>();
+        upperNodes.add(this.head);
+        upperNodes.addAll(this.head.children);
+
+        for(MzTreeNode node : upperNodes)
+        {
+            ensurePointIDs(node);
+            if(node.pointIDs != null)
+                this.pointCache.pin(node);
+        }
+    }
+
+    /**
+     * Performs an external load of the data set, holding at most a run of points in memory
+     * at a time. The points are spilled to disk as sorted runs, merged by rt then mz, and the
+     * tree is packed bottom-up with sort-tile-recursive (STR) tiling:
+     *      - The rt ordered points are cut into ceil(sqrt(numLeafNodes)) slabs of whole leaves
+     *      - Each slab is sorted by mz and cut into leaves, in turn
+     *      - Each upper level tiles the nodes below it the same way, by their bounds' centers
+     * The resulting tree depends on the dataset alone, not on the available memory.
+     * @param mzmlParser input mzml file parser, initialized for a partitioned read of runs
+     * @param sourceFilePath path to the mzml file
+     * @throws Exception 
+     */
+    private void externalLoad(MzmlParser mzmlParser, Path sourceFilePath) throws Exception
+    {
+        int runSize = mzmlParser.partitionSize;
+        Path destinationPath = getConvertDestinationPath(sourceFilePath).toAbsolutePath();
         
-        // init head node
-        this.head = new MzTreeNode(this.branchingFactor);
+        // runs are written next to the mzTree file, the temp directory may be small or in memory
+        Path runDirectory = destinationPath.getParent();
         
-        // iterate through each level 1 node, loading partition and
-        // constructing separately
-        for(int i = 0; i < this.branchingFactor; i++)
-        {            
-            // current level 1 node
-            MzTreeNode curL1Node = new MzTreeNode(this.branchingFactor);
+        try (ExternalPointSorter rtSorter = new ExternalPointSorter(true, runSize, runDirectory))
+        {
+            // **************** STEP 1: SPILL SORTED RUNS ****************
             
-            // load level 1 node's partition
-            List<MsDataPoint> curPartition = mzmlParser.readPartition();
-
-            // recursively construct level 1 node
-            this.divide(true, curPartition, curL1Node , 1);
+            int numPoints = 0;
+            PointStore run;
+            do
+            {
+                run = mzmlParser.readPartition();
+                numPoints += run.size();
+                if(!run.isEmpty())
+                    rtSorter.addRun(run);
+            }
+            // a partial partition holds the last of the dataset
+            while(run.size() == runSize);
+            run = null;
+            
+            LOGGER.log(Level.INFO, "External load of " + numPoints + " points from " + rtSorter.getNumRuns() + " runs");
+            
+            // the exact number of points is known once parsed
+            this.initDataStorage(STORAGE_INTERFACE_CHOICE, destinationPath.toString(), numPoints);
+            this.importState.setTotalWork(numPoints);
+            
+            // **************** STEP 2: CONFIGURE TREE ****************
+            
+            int numLeafNodes = (int) Math.ceil((double) numPoints / (double) MzTree.NUM_POINTS_PER_NODE);
+            
+            // branching factor = leafnodes ^ (1/treeDepth), as for a standard load
+            this.branchingFactor = Math.max(MzTree.MINIMUM_BRANCHING_FACTOR,
+                    (int) Math.ceil(Math.pow(numLeafNodes, 1.0 / (double) MzTree.DEFAULT_TREE_HEIGHT)));
+            
+            // each rt slab holds an equal number of whole leaves
+            int numSlabs = (int) Math.ceil(Math.sqrt(numLeafNodes));
+            long slabSize = (long) Math.ceil((double) numLeafNodes / (double) numSlabs) * MzTree.NUM_POINTS_PER_NODE;
+            
+            // **************** STEP 3: BUILD LEAVES ****************
+            
+            this.importState.setImportStatus(ImportStatus.CONVERTING);
+            
+            List<MzTreeNode> leaves = new ArrayList<>(numLeafNodes);
+            PointStore block = new PointStore(MzTree.NUM_POINTS_PER_NODE);
+            int idBase = this.dataStorage.getPointCount();
             
-            // add the level 1 node to the root node
-            this.head.addChildGetBounds(curL1Node);
+            ExternalPointSorter.PointCursor rtPoints = rtSorter.sorted();
+            for(long slabStart = 0; slabStart < numPoints; slabStart += slabSize)
+            {
+                long slabEnd = Math.min(slabStart + slabSize, numPoints);
+                
+                // sort the slab by mz, out of core as well should it exceed a run
+                try (ExternalPointSorter mzSorter = new ExternalPointSorter(false, runSize, runDirectory))
+                {
+                    for(long i = slabStart; i < slabEnd && rtPoints.next(); i++)
+                        mzSorter.add(rtPoints.mz, rtPoints.rt, rtPoints.intensity, rtPoints.meta1);
+                    
+                    // cut the slab into leaves
+                    ExternalPointSorter.PointCursor mzPoints = mzSorter.sorted();
+                    while(mzPoints.next())
+                    {
+                        block.add(0, mzPoints.mz, mzPoints.rt, mzPoints.intensity, mzPoints.meta1);
+                        if(block.size() == MzTree.NUM_POINTS_PER_NODE)
+                            idBase += this.saveLeaf(block, idBase, leaves);
+                    }
+                    if(!block.isEmpty())
+                        idBase += this.saveLeaf(block, idBase, leaves);
+                }
+            }
+
+            // no point passed the intensity threshold, the head is an empty leaf as for a standard load
+            if(leaves.isEmpty())
+                this.saveLeaf(block, idBase, leaves);
 
-            LOGGER.log(Level.INFO, "Completed partition " + i);
+            LOGGER.log(Level.INFO, "Saved " + leaves.size() + " leaves in " + numSlabs + " slabs");
             
-            this.pointCache.clear();
+            // **************** STEP 4: PACK UPPER LEVELS ****************
+            
+            // the summaries of a level stay in memory for the next while they fit in a run
+            List<MzTreeNode> level = leaves;
+            Map<MzTreeNode, PointStore> levelPoints = Collections.emptyMap();
+            this.treeHeight = 0;
+            while(level.size() > 1)
+            {
+                List<MzTreeNode> parents = new ArrayList<>();
+                levelPoints = this.packLevel(level, levelPoints, parents, runSize);
+                level = parents;
+                this.treeHeight++;
+            }
+            this.head = level.get(0);
         }
         
-        // root node summarization!!!!!!
-        this.head.summarizeFromChildren(MzTree.NUM_POINTS_PER_NODE, this.summarizer, this.pointCache);
-        
         // recursively save node information (only points are saved during construction)
         this.recursiveNodeSave(this.head, 0);
         
+        // leaves were ordered by rank as they were built
+        this.setRankOrdered(true);
+        
         try {
+            this.dataStorage.setRankOrdered();
+            
             // commit all entries
             this.dataStorage.flush();
         } catch (Exception ex) {
@@ -273,6 +415,99 @@ public final class MzTree
         }   
     }
     
+    /**
+     * Saves a block of points as a new leaf node, in rank order, and empties the block.
+     * The leaf's pointIDs are not kept, they follow from its position in the point file
+     * @param block points of the leaf
+     * @param idBase pointID of the block's first point
+     * @param leaves list receiving the leaf
+     * @return number of points saved
+     * @throws Exception 
+     */
+    private int saveLeaf(PointStore block, int idBase, List<MzTreeNode> leaves) throws Exception
+    {
+        int numPoints = block.size();
+        block.sortByRank(0, numPoints);
+        for(int i = 0; i < numPoints; i++)
+            block.setPointID(i, idBase + i);
+        
+        MzTreeNode leaf = new MzTreeNode(0);
+        this.dataStorage.savePoints(new StorageFacade.SavePointsTask(leaf, block, 0, numPoints), this.importState);
+        leaf.initLeaf(block, 0, numPoints);
+        leaf.pointIDs = null;
+        leaves.add(leaf);
+        
+        block.clear();
+        return numPoints;
+    }
+    
+    /**
+     * Tiles a level of nodes into parent nodes of up to branchingFactor children each (STR).
+     * The nodes are sorted by the center of their rt bounds and cut into ceil(sqrt(numParents))
+     * slabs, each slab is sorted by the center of their mz bounds and cut into parents.
+     * Parents are summarized from their children's points, concurrently.
+     * @param nodes nodes of the level, saved to storage
+     * @param nodePoints points of the nodes held in memory, the others are loaded from storage
+     * @param parents list receiving the parent nodes
+     * @param maxRetainedPoints maximum number of summary points to keep in memory
+     * @return the parents' summary points if they fit within maxRetainedPoints, else an empty map
+     */
+    private Map<MzTreeNode, PointStore> packLevel(List<MzTreeNode> nodes, Map<MzTreeNode, PointStore> nodePoints,
+            List<MzTreeNode> parents, int maxRetainedPoints)
+    {
+        int numParents = (int) Math.ceil((double) nodes.size() / (double) this.branchingFactor);
+        int numSlabs = (int) Math.ceil(Math.sqrt(numParents));
+        int slabSize = (int) Math.ceil((double) numParents / (double) numSlabs) * this.branchingFactor;
+        
+        List<MzTreeNode> byRt = new ArrayList<>(nodes);
+        byRt.sort(Comparator.comparingDouble(node -> ((double) node.rtMin + (double) node.rtMax) / 2));
+        
+        for(int slabStart = 0; slabStart < byRt.size(); slabStart += slabSize)
+        {
+            List<MzTreeNode> slab = new ArrayList<>(byRt.subList(slabStart, Math.min(slabStart + slabSize, byRt.size())));
+            slab.sort(Comparator.comparingDouble(node -> (node.mzMin + node.mzMax) / 2));
+            
+            for(int i = 0; i < slab.size(); i += this.branchingFactor)
+            {
+                MzTreeNode parent = new MzTreeNode(this.branchingFactor);
+                for(MzTreeNode child : slab.subList(i, Math.min(i + this.branchingFactor, slab.size())))
+                    parent.addChildGetBounds(child);
+                parents.add(parent);
+            }
+        }
+        
+        boolean retainPoints = (long) parents.size() * MzTree.NUM_POINTS_PER_NODE <= maxRetainedPoints;
+        Map<MzTreeNode, PointStore> parentPoints = retainPoints ? new ConcurrentHashMap<>() : Collections.emptyMap();
+        
+        parents.parallelStream().forEach(parent -> {
+            PointStore summary = this.summarizeFromChildren(parent, nodePoints);
+            if(retainPoints)
+                parentPoints.put(parent, summary);
+        });
+        return parentPoints;
+    }
+    
+    /**
+     * Summarizes a node from its children's points, loading those not held in memory from storage
+     * @param node node whose children have been saved
+     * @param nodePoints points of the nodes held in memory
+     * @return the summary's points
+     */
+    private PointStore summarizeFromChildren(MzTreeNode node, Map<MzTreeNode, PointStore> nodePoints)
+    {
+        PointStore childrensPoints = new PointStore();
+        try {
+            for(MzTreeNode child : node.children)
+            {
+                PointStore childPoints = nodePoints.get(child);
+                childrensPoints.addAll((childPoints != null) ? childPoints : this.dataStorage.loadNodePoints(child));
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException("Could not load the points of a node's children", ex);
+        }
+        return childrensPoints.subset(node.summarizeFromChildren(MzTree.NUM_POINTS_PER_NODE, this.summarizer, childrensPoints));
+    }
+    
     /**
      * Performs a standard, memory-apathetic load
      * @param mzmlParser input file parser initialized w/ target file
@@ -284,7 +519,7 @@ public final class MzTree
     {   
         importState.setImportStatus(ImportStatus.PARSING);
 
-        List<MsDataPoint> dataset = mzmlParser.readAllData();
+        PointStore dataset = mzmlParser.readAllData();
 
         this.buildTreeFromRoot(dataset, Paths.get(filePath));
     }
@@ -300,7 +535,7 @@ public final class MzTree
     {
         this.importState.setImportStatus(ImportStatus.PARSING);
         
-        ArrayList<MsDataPoint> points = new ArrayList<>();
+        PointStore points = new PointStore();
         
         // open csv reader on targetted csv file
         CSVReader reader = new CSVReader(new FileReader(filePath));
@@ -311,17 +546,15 @@ public final class MzTree
         // if the first line is not a header
         if(line != null && StringUtils.isNumeric(line[0]))
         {
-            // convert to msdatapoint, collect
-            MsDataPoint point = this.csvRowToMsDataPoint(line);
-            points.add(point);
+            // convert to point, collect
+            this.addCsvRow(points, line);
         }
         
         // read the remaining lines (now guaranteed no header)
         while((line = reader.readNext()) != null)
         {
-            // convert to msdatapoint, collect
-            MsDataPoint point = this.csvRowToMsDataPoint(line);
-            points.add(point);
+            // convert to point, collect
+            this.addCsvRow(points, line);
         }
         
         // build that tree!
@@ -330,10 +563,10 @@ public final class MzTree
     }
     
     /**
-     * Constructs an MzTree from the dataset, starting at the root node (so no partitioned load)
+     * Constructs an MzTree from the dataset, starting at the root node (so no external load)
      * @param dataset
      */
-    private void buildTreeFromRoot(List<MsDataPoint> dataset, Path sourceFilePath) throws Exception
+    private void buildTreeFromRoot(PointStore dataset, Path sourceFilePath) throws Exception
     {
         LOGGER.log(Level.INFO, "Building MzTree from " + dataset.size() + " points");
 
@@ -361,12 +594,18 @@ public final class MzTree
         this.importState.setImportStatus(ImportStatus.CONVERTING);
 
         // divide the head node, do not sort at start (null), mzML data already sorted by RT
-        this.divide(null, dataset, this.head, 0);
+        int idBase = this.dataStorage.getPointCount();
+        ForkJoinPool.commonPool().invoke(new DivideTask(null, dataset, idBase, 0, dataset.size(), this.head, 0));
 
         // recursively save node information (only points are saved during construction)
         this.recursiveNodeSave(this.head, 0);
+        
+        // leaves were ordered by rank as they were built
+        this.setRankOrdered(true);
 
         try {
+            this.dataStorage.setRankOrdered();
+            
             // commit all entries
             this.dataStorage.flush();
         } catch (Exception ex) {
@@ -375,25 +614,36 @@ public final class MzTree
     }
     
     /**
-     * Recursively divides the dataset into the mzTree, a depth first construction
-     * starting with the head node. 
+     * Recursively divides the dataset into the mzTree starting with the head node.
+     * The children of a node are divided concurrently, each working on its own range
+     * of the dataset, and the node is summarized once they have all completed.
      * @param sort_by_rt sorting flag, rt or mz
-     * @param dataset The recursive call's data partition
+     * @param dataset The dataset being built, recursive calls work on a range of it
+     * @param idBase pointID of the dataset's first point
+     * @param from index of the recursive call's first point
+     * @param to index after the recursive call's last point
      * @param head The recursive call's top level node
      * @param curHeight current height in three (root is 0)
      */
-    private void divide(Boolean sort_by_rt, List<MsDataPoint> dataset, MzTreeNode head, int curHeight)
+    private void divide(Boolean sort_by_rt, PointStore dataset, int idBase, int from, int to, MzTreeNode head, int curHeight)
     {
         // leaf flag
-        boolean isLeaf = dataset.size() <= MzTree.NUM_POINTS_PER_NODE;
+        boolean isLeaf = to - from <= MzTree.NUM_POINTS_PER_NODE;
         
         // LEAF: save points, get mins/maxes
         if (isLeaf)
         {
-            // leaf node submits its dataset to be written to data store
+            // a leaf's points are stored in rank order for sampling at query time
+            dataset.sortByRank(from, to);
+            
+            // a point's ID follows from its final position in the dataset
+            // so that leaves may be saved in any order
+            for(int i = from; i < to; i++)
+                dataset.setPointID(i, idBase + i);
+            
+            // leaf node submits its range to be written to data store
             try{
-                this.dataStorage.savePoints(new StorageFacade.SavePointsTask(head,dataset), this.importState);
-                this.pointCache.putAll(dataset);
+                this.dataStorage.savePoints(new StorageFacade.SavePointsTask(head, dataset, from, to), this.importState);
             }
             catch(Exception e)
             {
@@ -401,9 +651,7 @@ public final class MzTree
             }
             
             // collect point IDs, mz/rt/intensity min/max
-            head.initLeaf(dataset);
-            
-            dataset = null; // garbage collect away   
+            head.initLeaf(dataset, from, to);
         }
         
         // ROOT/INTERMEDIATE: summarize, partition and recurse
@@ -415,79 +663,105 @@ public final class MzTree
             if(sort_by_rt != null)
             {
                 if (sort_by_rt)
-                    Collections.sort(dataset, Comparator.comparingDouble((MsDataPoint dataPoint) -> dataPoint.rt));
+                    dataset.sortByRt(from, to);
                 else
-                    Collections.sort(dataset, Comparator.comparingDouble((MsDataPoint dataPoint) -> dataPoint.mz));
+                    dataset.sortByMz(from, to);
             }
 
             // the partition size is the subset length divided by the numChildrenPerNode
-            int partitionSize = (int) Math.ceil((double) dataset.size() / (double) this.branchingFactor);
-
-            // split the dataset into partitions
-            List<List<MsDataPoint>> partitions = new ArrayList<>();
-            int i = 0;
-            while(i < dataset.size())
-            {
-                // populate partition
-                final List<MsDataPoint> partition = dataset.subList(i, Math.min(i + partitionSize, dataset.size()));
-                i += partition.size();
-
-                // collect partition
-                partitions.add(partition);
-            }
+            int partitionSize = (int) Math.ceil((double) (to - from) / (double) this.branchingFactor);
 
-            // free dataset for GC
-            dataset = null;
+            // resolve sort_by_rt
+            // if null (initial call mzML) set to true
+            boolean my_sort_by_rt = (sort_by_rt == null) ? true : sort_by_rt;
             
             // distribute the partitions to child nodes
-            for(List<MsDataPoint> partition : partitions)
+            List<DivideTask> childTasks = new ArrayList<>(this.branchingFactor);
+            for(int i = from; i < to; i += partitionSize)
             {
                 // instantiate child node
                 MzTreeNode child = new MzTreeNode(this.branchingFactor);
-
-                // resolve sort_by_rt
-                Boolean my_sort_by_rt = sort_by_rt;
-
-                // if null (initial call mzML) set to true
-                if(my_sort_by_rt == null)
-                    my_sort_by_rt = true;
-
-                // recursively divide child node (depth first)
-                this.divide(!my_sort_by_rt, partition, child, curHeight + 1);
-
-                // collect child node
-                head.addChildGetBounds(child);
+                childTasks.add(new DivideTask(!my_sort_by_rt, dataset, idBase, i, Math.min(i + partitionSize, to), child, curHeight + 1));
             }
             
+            // recursively divide child nodes, concurrently
+            ForkJoinTask.invokeAll(childTasks);
+
+            // collect child nodes in partition order
+            for(DivideTask childTask : childTasks)
+                head.addChildGetBounds(childTask.head);
+            
             // collect summary of points from child nodes (additionally saves pointIDs)
-            head.summarizeFromChildren(MzTree.NUM_POINTS_PER_NODE, this.summarizer, this.pointCache);
+            PointStore childrensPoints = gatherBuildPoints(dataset, idBase, MzTreeNode.concatPointIDs(head.children));
+            head.summarizeFromChildren(MzTree.NUM_POINTS_PER_NODE, this.summarizer, childrensPoints);
             
         } // END ROOT/INTERMEDIATE NODE
         
     }
     
     /**
-     * Upon the user selecting a memory-conservative load, configures the tree for
-     * a partitioned load according to available memory.
-     *      - A minimum branching factor must be reached by the partitioned configuration,
-     *        a branching factor smaller than the minimum creates a very tall tree. 
-     *        Increasing the branching factor decreases partition size, 
-     *        thus not endangering memory consumption. 
-     *      - If the partitioned configuration returns a branching factor of 1 
-     *        then the entire dataset will fit into memory. Revert to default configuration.
+     * Gathers the points referenced by pointIDs from the dataset being built.
+     * A saved point's ID is its index in the dataset offset by the ID of the dataset's first point
+     * @param dataset dataset whose referenced points have been saved
+     * @param idBase pointID of the dataset's first point
+     * @param pointIDs IDs of the points to gather
+     * @return the referenced points, in pointIDs order
+     */
+    private static PointStore gatherBuildPoints(PointStore dataset, int idBase, int[] pointIDs)
+    {
+        PointStore points = new PointStore(pointIDs.length);
+        for(int pointID : pointIDs)
+            points.add(dataset, pointID - idBase);
+        return points;
+    }
+    
+    /**
+     * Divides a range of a dataset into a subtree, see divide
+     */
+    private class DivideTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Boolean sortByRt;
+        private final PointStore dataset;
+        private final int idBase;
+        private final int from;
+        private final int to;
+        private final MzTreeNode head;
+        private final int curHeight;
+        
+        DivideTask(Boolean sortByRt, PointStore dataset, int idBase, int from, int to, MzTreeNode head, int curHeight)
+        {
+            this.sortByRt = sortByRt;
+            this.dataset = dataset;
+            this.idBase = idBase;
+            this.from = from;
+            this.to = to;
+            this.head = head;
+            this.curHeight = curHeight;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            divide(this.sortByRt, this.dataset, this.idBase, this.from, this.to, this.head, this.curHeight);
+        }
+    }
+    
+    /**
+     * Determines whether the dataset fits in memory, and if not configures the
+     * parser to read it in runs of the most points that fit in memory.
      * @param mzmlParser input mzml file parser
-     * @return false if partitioned load is unnecessary (entire dataset will fit in RAM), otherwise true 
-     * @throws XMLStreamException
-     * @throws FileNotFoundException
-     * @throws IOException
-     * @throws DataFormatException 
+     * @return false if an external load is unnecessary (entire dataset will fit in RAM), otherwise true 
+     * @throws Exception
      */
-    private boolean partitionedLoadConfiguration(MzmlParser mzmlParser, Path sourceFilePath) throws Exception
+    private boolean externalLoadConfiguration(MzmlParser mzmlParser) throws Exception
     {
         
         this.importState.setImportStatus(ImportStatus.PARSING);
         
         // count the number of points in the mzML file
+        // (an upper bound, points below the intensity threshold may be included)
         int numPoints = mzmlParser.countPoints();
 
         // number of available bytes in java heap
@@ -495,46 +769,17 @@ public final class MzTree
 
         // max allowed points to hold in memory at a time
         // = (heap size * FRACTION) / bytes per point
-        int maxPointsInRam = (int) Math.floor((numBytesInHeap * MzTree.HEAP_FRACTION) / (float)MsDataPoint.MEM_NUM_BYTES_PER_POINT);
+        int maxPointsInRam = (int) Math.floor((numBytesInHeap * MzTree.HEAP_FRACTION) / (float)PointStore.BUILD_NUM_BYTES_PER_POINT);
         
-        // number of leafNodes = globalNumPoints / hdBlockTupleCapacity
-        int numLeafNodes = (int) Math.ceil((float) numPoints / (float) MzTree.NUM_POINTS_PER_NODE);
-
-        // branching factor determined by the max number of points allowed in RAM
-        // if branchingFactor != 1 each level 1 subtree will be processed one at a time
-        this.branchingFactor = (short)Math.ceil((float)numPoints / (float)maxPointsInRam);
-
-        // branchingFactor != 1 implies the entire dataset won't fit into the heap,
-        // branchingFactor determines treeHeight
-        if(this.branchingFactor != 1)
-        {
-            // ensure we use at least the minimum branching factor
-            this.branchingFactor = Math.max(this.branchingFactor, MzTree.MINIMUM_BRANCHING_FACTOR);
-            
-            // treeHeight = log_branchingFactor(numLeafNodes)
-            // cool logarithmic identity: logb(n) = log(n) / log(b)
-            this.treeHeight = (short)(Math.ceil(Math.log(numLeafNodes) / Math.log(this.branchingFactor)));
-
-            // if branchingFactor unchanged by max call partitionSize == maxPointsInRam
-            // else partitionSize < maxPointsInRam -> SAFE
-            int partitionSize = (int) Math.floor( (float) numPoints / (float) this.branchingFactor);
-            
-            // prepare parser for partitioned read
-            // recalculate partition size
-            mzmlParser.initPartitionedRead(partitionSize);
-            
-            this.initDataStorage(STORAGE_INTERFACE_CHOICE, getConvertDestinationPath(sourceFilePath).toString(), numPoints);
-            
-            // inform importState of the amount of work to do
-            this.importState.setTotalWork(numPoints);
-            
-            return true;
-        }
-        // else branching factor is 1, implying the entire dataset can fit into heap
+        // the entire dataset can fit into heap
         // return false to signal a regular load should ensue
-        else    
+        if(numPoints <= maxPointsInRam)
             return false;
         
+        // prepare parser to read runs of at most maxPointsInRam points
+        mzmlParser.initPartitionedRead(maxPointsInRam);
+        
+        return true;
     }
     
     /**
@@ -548,8 +793,22 @@ public final class MzTree
             // save node to db
             curNode.nodeID = this.dataStorage.saveNode(curNode, parentNodeID);
             
+            // leaves of an external load do not keep their pointIDs,
+            // which are consecutive from the leaf's first point in the point file
+            boolean releasePointIDs = (curNode.pointIDs == null && curNode.fileIndex != null);
+            if(releasePointIDs)
+            {
+                int firstPointID = (int) (curNode.fileIndex / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+                int[] pointIDs = new int[curNode.numSavedPoints];
+                for(int i = 0; i < curNode.numSavedPoints; i++)
+                    pointIDs[i] = firstPointID + i;
+                curNode.pointIDs = pointIDs;
+            }
+            
             // save node points to db
             this.dataStorage.saveNodePoints(curNode, this.importState);
+            if(releasePointIDs)
+                curNode.pointIDs = null;
             
             // recurse on chilren
             for(MzTreeNode childNode : curNode.children)
@@ -603,18 +862,45 @@ public final class MzTree
      * @param rtMin query rt lower bound
      * @param rtMax query rt upper bound
      * @param numPoints number of points to be returned; 0 to return all points possible from the leaf depth and not use the cache
-     * @return 2-dimensional double array
+     * @return points within the bounds, null if they could not be loaded
      */
-    public List<MsDataPoint> query(double mzMin, double mzMax,
+    public PointStore query(double mzMin, double mzMax,
                                    float rtMin, float rtMax, int numPoints)
+    {
+        return this.query(mzMin, mzMax, rtMin, rtMax, 0, 0, numPoints);
+    }
+    
+    /**
+     * Queries the MzTree for points contained with the mz, rt, intensity bounds.
+     * Subtrees whose intensity range misses the intensity bounds are not visited.
+     *
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param intMin query intensity lower bound
+     * @param intMax query intensity upper bound
+     * @param numPoints number of points to be returned; 0 to return all points possible from the leaf depth and not use the cache
+     * @return points within the bounds, null if they could not be loaded
+     */
+    public PointStore query(double mzMin, double mzMax,
+                                   float rtMin, float rtMax, double intMin, double intMax, int numPoints)
     {
         boolean useSummary = (numPoints > 0);
 
         // if zero passed for any query bound use global min/max
-        mzMin = (mzMin == 0) ? this.head.mzMin : mzMin;
-        mzMax = (mzMax == 0) ? this.head.mzMax : mzMax;
-        rtMin = (rtMin == 0) ? this.head.rtMin : rtMin;
-        rtMax = (rtMax == 0) ? this.head.rtMax : rtMax;
+        double[] bounds = this.normalizeBounds(mzMin, mzMax, rtMin, rtMax, intMin, intMax);
+        mzMin = bounds[0];
+        mzMax = bounds[1];
+        rtMin = (float) bounds[2];
+        rtMax = (float) bounds[3];
+        intMin = bounds[4];
+        intMax = bounds[5];
+
+        // the traversal starts from the head without checking it, so bounds that miss the
+        // head (e.g. an intensity range beyond the tree's) have no points
+        if(!this.doesOverlap(this.head, mzMin, mzMax, rtMin, rtMax, intMin, intMax))
+            return new PointStore();
                 
         // current level in tree
         int curLevel = 0;
@@ -622,8 +908,8 @@ public final class MzTree
         // all nodes in current level of tree within the query bounds
         ArrayList<MzTreeNode> curLevelNodesInBounds = new ArrayList<>();
         
-        // IDs the points in the current level that are within the query bounds
-        ArrayList<MsDataPoint> curLevelPointsInBounds = new ArrayList<>();
+        // the points in the current level that are within the query bounds
+        PointStore curLevelPointsInBounds = new PointStore();
 
         // follow down the tree all nodes within the query bounds
         // base case: curLevel is the leaf level
@@ -631,12 +917,16 @@ public final class MzTree
 
             // populates curLevelNodesInBounds with the children of the current curLevelNodesInBounds
             // that are within the query's bounds
-            curLevelNodesInBounds = this.collectNextLevelNodesInBounds(curLevelNodesInBounds,mzMin,mzMax,rtMin,rtMax);
+            curLevelNodesInBounds = this.collectNextLevelNodesInBounds(curLevelNodesInBounds,mzMin,mzMax,rtMin,rtMax,intMin,intMax);
             curLevel++;
 
             if (useSummary) {
                 // find candidate points at current level
-                curLevelPointsInBounds = this.collectPointsWithinBounds(curLevelNodesInBounds,mzMin,mzMax,rtMin,rtMax);
+                // (ranked nodes yield their sample directly, at most numPoints points)
+                if (this.rankSampled)
+                    curLevelPointsInBounds = this.collectRankedPointsWithinBounds(curLevelNodesInBounds,mzMin,mzMax,rtMin,rtMax,intMin,intMax,numPoints);
+                else
+                    curLevelPointsInBounds = this.collectPointsWithinBounds(curLevelNodesInBounds,mzMin,mzMax,rtMin,rtMax,intMin,intMax);
 
                 // stop going down the tree early if enough points are found
                 if (curLevelPointsInBounds.size() >= numPoints) {
@@ -653,18 +943,25 @@ public final class MzTree
                 return curLevelPointsInBounds;
             } else {
                 // return points sampled down using a summary
-                return this.summarizer.summarize(curLevelPointsInBounds, numPoints);
+                return curLevelPointsInBounds.subset(this.summarizer.summarize(curLevelPointsInBounds, numPoints));
             }
         } else {
             // when not using summary, the points must be loaded from the leaf level
 
             try {
-                // populate each node's pointID array
-                for(MzTreeNode node : curLevelNodesInBounds)
-                    ensurePointIDs(node);
-
-                // use the leaf-node optimized query
-                return this.dataStorage.loadLeavesPointsInBounds(curLevelNodesInBounds, mzMin, mzMax, rtMin, rtMax);
+                double leafMzMin = mzMin, leafMzMax = mzMax;
+                float leafRtMin = rtMin, leafRtMax = rtMax;
+                double leafIntMin = intMin, leafIntMax = intMax;
+
+                // use the leaf-node optimized query, a chunk of leaves per pool thread
+                List<PointStore> chunkPoints = mapNodeChunks(curLevelNodesInBounds, MIN_NODES_PER_POINTS_TASK, leaves -> {
+                    // populate each node's pointID array
+                    for(MzTreeNode node : leaves)
+                        ensurePointIDs(node);
+
+                    return this.dataStorage.loadLeavesPointsInBounds(leaves, leafMzMin, leafMzMax, leafRtMin, leafRtMax, leafIntMin, leafIntMax);
+                });
+                return mergePoints(chunkPoints);
             } catch(Exception e) {
                 LOGGER.log(Level.WARNING, "Failed to load points from the leaf level", e);
                 return null;
@@ -672,6 +969,29 @@ public final class MzTree
         }
     }
 
+    /**
+     * Normalizes query bounds as query does: a bound of zero stands for the global
+     * min or max of its dimension. Queries with equal normalized bounds are equal.
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param intMin query intensity lower bound
+     * @param intMax query intensity upper bound
+     * @return normalized bounds {mzMin, mzMax, rtMin, rtMax, intMin, intMax}, the rt bounds exact floats
+     */
+    public double[] normalizeBounds(double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax)
+    {
+        return new double[] {
+            (mzMin == 0) ? this.head.mzMin : mzMin,
+            (mzMax == 0) ? this.head.mzMax : mzMax,
+            (rtMin == 0) ? this.head.rtMin : rtMin,
+            (rtMax == 0) ? this.head.rtMax : rtMax,
+            (intMin == 0) ? this.head.intMin : intMin,
+            (intMax == 0) ? this.head.intMax : intMax
+        };
+    }
+
     /**
      * Collects all child nodes of all nodes in curLevelNodesInBounds that overlap
      * with the bounds of the query
@@ -680,19 +1000,48 @@ public final class MzTree
      * @param mzMax mz upper bound
      * @param rtMin rt lower bound
      * @param rtMax rt upper bound
+     * @param intMin intensity lower bound
+     * @param intMax intensity upper bound
      * @return ArrayList containing nodes of the next level that overlap with the query bounds
      */
-    private ArrayList<MzTreeNode> collectNextLevelNodesInBounds(ArrayList<MzTreeNode> curLevelNodesInBounds, double mzMin, double mzMax, float rtMin, float rtMax){
-        
-        // nodes in the next level that overlap the bounds of the query
-        ArrayList<MzTreeNode> nextLevelNodesInBounds = new ArrayList<>();
+    private ArrayList<MzTreeNode> collectNextLevelNodesInBounds(ArrayList<MzTreeNode> curLevelNodesInBounds, double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax){
         
         // base case: curLevelNodesInBounds is empty
-        // return ArrayList with the head node of the tree (guaranteed to overlap  bounds)
+        // return ArrayList with the head node of the tree (query has checked it overlaps the bounds)
         if(curLevelNodesInBounds.isEmpty()){
+            ArrayList<MzTreeNode> nextLevelNodesInBounds = new ArrayList<>();
             nextLevelNodesInBounds.add(this.head);
             return nextLevelNodesInBounds;
         }
+        
+        // check a chunk of the current level's nodes per pool thread
+        List<ArrayList<MzTreeNode>> chunkNodes = mapNodeChunks(curLevelNodesInBounds, MIN_NODES_PER_BOUNDS_TASK,
+                nodes -> this.collectChildrenInBounds(nodes, mzMin, mzMax, rtMin, rtMax, intMin, intMax));
+        if(chunkNodes.size() == 1)
+            return chunkNodes.get(0);
+        
+        ArrayList<MzTreeNode> nextLevelNodesInBounds = new ArrayList<>();
+        for(ArrayList<MzTreeNode> nodes : chunkNodes)
+            nextLevelNodesInBounds.addAll(nodes);
+        return nextLevelNodesInBounds;
+    }
+    
+    /**
+     * Collects the children of nodes that overlap with the bounds of the query, see
+     * collectNextLevelNodesInBounds
+     * @param curLevelNodesInBounds nodes in the current level that overlap with the query bounds
+     * @param mzMin mz lower bound
+     * @param mzMax mz upper bound
+     * @param rtMin rt lower bound
+     * @param rtMax rt upper bound
+     * @param intMin intensity lower bound
+     * @param intMax intensity upper bound
+     * @return ArrayList containing the children that overlap with the query bounds
+     */
+    private ArrayList<MzTreeNode> collectChildrenInBounds(List<MzTreeNode> curLevelNodesInBounds, double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax){
+        
+        // nodes in the next level that overlap the bounds of the query
+        ArrayList<MzTreeNode> nextLevelNodesInBounds = new ArrayList<>();
          
         // iterate through all current level nodes
         for(MzTreeNode curLevelNode : curLevelNodesInBounds)
@@ -704,7 +1053,7 @@ public final class MzTree
                 for(MzTreeNode nextLevelNode : curLevelNode.children)
                 {
                     // collecting if overlaps with the bounds of the query
-                    if(this.doesOverlap(nextLevelNode, mzMin, mzMax, rtMin, rtMax))
+                    if(this.doesOverlap(nextLevelNode, mzMin, mzMax, rtMin, rtMax, intMin, intMax))
                         nextLevelNodesInBounds.add(nextLevelNode);
                 }
             } 
@@ -719,41 +1068,212 @@ public final class MzTree
     
     /**
      * Collects the points within a collection of MzTreeNodes that fall within
-     * the given mz/rt bounds
+     * the given mz/rt/intensity bounds
      * @param nodes nodes whose points are to be checked against bounds of query
      * @param mzMin mz lower bound
      * @param mzMax mz upper bound
      * @param rtMin rt lower bound
      * @param rtMax rt upper bound
-     * @return List of MsDataPoints belonging to the given nodes that are within the given bounds
+     * @param intMin intensity lower bound
+     * @param intMax intensity upper bound
+     * @return points belonging to the given nodes that are within the given bounds
      */
-    private ArrayList<MsDataPoint> collectPointsWithinBounds(ArrayList<MzTreeNode> nodes,
-                                                             double mzMin, double mzMax, float rtMin, float rtMax){
+    private PointStore collectPointsWithinBounds(ArrayList<MzTreeNode> nodes,
+                                                             double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax){
         
-        // collect all point IDs from all nodes
-        ArrayList<Integer> allNodesPointIDs = new ArrayList<>();
-        for(MzTreeNode node : nodes) {
-            ensurePointIDs(node);
+        // scan a chunk of the nodes per pool thread
+        return mergePoints(mapNodeChunks(nodes, MIN_NODES_PER_POINTS_TASK, chunk -> {
+            
+            // store for collecting points that fall within bounds
+            PointStore pointsWithinBounds = new PointStore();
 
-            allNodesPointIDs.addAll(node.pointIDs);
-        }
+            for(MzTreeNode node : chunk)
+            {
+                ensurePointIDs(node);
+                if(node.pointIDs == null)
+                    continue;
+
+                // retrieve the node's block of points from pointCache
+                PointStore nodePoints = this.pointCache.retrieveNodePoints(node);
 
-        // retrieve all points from pointCache
-        ArrayList<MsDataPoint> allNodesPoints = this.pointCache.retrievePoints(allNodesPointIDs);
+                // iterate through the node's points, checking to see if they fall within the bounds
+                for(int i = 0; i < nodePoints.size(); i++){
 
-        // arraylist for collecting points that fall within bounds
-        ArrayList<MsDataPoint> pointsWithinBounds = new ArrayList<>();
+                    // if in bounds then collect
+                    if(nodePoints.isInBounds(i, mzMin, mzMax, rtMin, rtMax, intMin, intMax))
+                        pointsWithinBounds.add(nodePoints, i);
+                }
+            }
 
-        // iterate through all nodes, checking to see if they fall within the bounds
-        for(MsDataPoint pointToCheck : allNodesPoints){
+            return pointsWithinBounds;
+        }));
+    }
 
-            // if in bounds then collect
-            if(pointToCheck.isInBounds(mzMin, mzMax, rtMin, rtMax))
-                pointsWithinBounds.add(pointToCheck);
+    /**
+     * Collects the highest ranked points within the given mz/rt/intensity bounds from a collection of
+     * MzTreeNodes whose points are in rank order (see PointRank). The nodes' blocks are merged
+     * by rank, examining only the points that precede the last point collected, and the result
+     * is an intensity weighted sample of the nodes' points within the bounds
+     * @param nodes nodes whose points are to be checked against bounds of query
+     * @param mzMin mz lower bound
+     * @param mzMax mz upper bound
+     * @param rtMin rt lower bound
+     * @param rtMax rt upper bound
+     * @param intMin intensity lower bound
+     * @param intMax intensity upper bound
+     * @param numPoints maximum number of points to collect
+     * @return up to numPoints of the nodes' points within the bounds, in descending rank order
+     */
+    private PointStore collectRankedPointsWithinBounds(ArrayList<MzTreeNode> nodes,
+            double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax, int numPoints){
+        
+        // retrieve the nodes' blocks of points, a chunk of the nodes per pool thread
+        List<List<PointStore>> chunkBlocks = mapNodeChunks(nodes, MIN_NODES_PER_POINTS_TASK, chunk -> {
+            List<PointStore> nodeBlocks = new ArrayList<>(chunk.size());
+            for(MzTreeNode node : chunk)
+            {
+                ensurePointIDs(node);
+                if(node.pointIDs != null)
+                    nodeBlocks.add(this.pointCache.retrieveNodePoints(node));
+            }
+            return nodeBlocks;
+        });
+        
+        // each queued block is positioned at its next point within the bounds
+        PriorityQueue<RankedBlock> blocks = new PriorityQueue<>(Math.max(nodes.size(), 1));
+        int order = 0;
+        for(List<PointStore> nodeBlocks : chunkBlocks)
+        {
+            for(PointStore nodePoints : nodeBlocks)
+            {
+                RankedBlock block = new RankedBlock(nodePoints, order++);
+                if(block.next(mzMin, mzMax, rtMin, rtMax, intMin, intMax))
+                    blocks.add(block);
+            }
         }
-
+        
+        // take the highest ranked point of any block until enough are collected
+        PointStore pointsWithinBounds = new PointStore();
+        while(pointsWithinBounds.size() < numPoints && !blocks.isEmpty())
+        {
+            RankedBlock block = blocks.poll();
+            pointsWithinBounds.add(block.points, block.i);
+            if(block.next(mzMin, mzMax, rtMin, rtMax, intMin, intMax))
+                blocks.add(block);
+        }
+        
         return pointsWithinBounds;
     }
+    
+    /**
+     * Applies a function to contiguous chunks of nodes, on the query pool if there are
+     * enough nodes to give each pool thread at least minNodesPerChunk of them, or else
+     * to all of the nodes on the calling thread. Results are returned in chunk order, so
+     * merging them in order gives the same result as applying the function to all nodes.
+     * @param nodes nodes to apply the function to
+     * @param minNodesPerChunk fewest nodes worth handing to a pool thread
+     * @param function function applied to each chunk of nodes
+     * @return result of each chunk, in node order
+     */
+    private static <T> List<T> mapNodeChunks(List<MzTreeNode> nodes, int minNodesPerChunk, NodeChunkFunction<T> function)
+    {
+        int numChunks = Math.min(QUERY_POOL.getParallelism(), nodes.size() / minNodesPerChunk);
+        try {
+            if(numChunks <= 1)
+                return Collections.singletonList(function.apply(nodes));
+            
+            List<Callable<T>> tasks = new ArrayList<>(numChunks);
+            for(int c = 0; c < numChunks; c++)
+            {
+                List<MzTreeNode> chunk = nodes.subList(nodes.size() * c / numChunks, nodes.size() * (c + 1) / numChunks);
+                tasks.add(() -> function.apply(chunk));
+            }
+            
+            List<T> results = new ArrayList<>(numChunks);
+            for(Future<T> result : QUERY_POOL.invokeAll(tasks))
+                results.add(result.get());
+            return results;
+        }
+        catch(ExecutionException ex) {
+            if(ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new IllegalStateException("Failed to scan nodes", ex.getCause());
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning nodes", ex);
+        }
+        catch(Exception ex) {
+            throw new IllegalStateException("Failed to scan nodes", ex);
+        }
+    }
+    
+    /**
+     * Function of a chunk of nodes, see mapNodeChunks
+     */
+    @FunctionalInterface
+    private interface NodeChunkFunction<T>
+    {
+        T apply(List<MzTreeNode> nodes) throws Exception;
+    }
+    
+    /* Concatenates point stores in order, the only store if there is one */
+    private static PointStore mergePoints(List<PointStore> chunkPoints)
+    {
+        if(chunkPoints.size() == 1)
+            return chunkPoints.get(0);
+        
+        int numPoints = 0;
+        for(PointStore points : chunkPoints)
+            numPoints += points.size();
+        
+        PointStore merged = new PointStore(numPoints);
+        for(PointStore points : chunkPoints)
+            merged.addAll(points);
+        return merged;
+    }
+    
+    /**
+     * Cursor over the points of a rank ordered node block that are within a query's bounds
+     */
+    private static class RankedBlock implements Comparable<RankedBlock>
+    {
+        private final PointStore points;
+        
+        // position of the block among the merged blocks, breaks ties
+        private final int order;
+        
+        // index and rank key of the current point
+        private int i = -1;
+        private double key;
+        
+        RankedBlock(PointStore points, int order)
+        {
+            this.points = points;
+            this.order = order;
+        }
+        
+        /* Moves to the next point within the bounds, false if there are none */
+        boolean next(double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax)
+        {
+            do {
+                this.i++;
+                if(this.i == this.points.size())
+                    return false;
+            } while(!this.points.isInBounds(this.i, mzMin, mzMax, rtMin, rtMax, intMin, intMax));
+            
+            this.key = PointRank.key(this.points, this.i);
+            return true;
+        }
+        
+        // highest key first
+        @Override
+        public int compareTo(RankedBlock other)
+        {
+            int order = Double.compare(other.key, this.key);
+            return (order != 0) ? order : Integer.compare(this.order, other.order);
+        }
+    }
 
     private void ensurePointIDs(MzTreeNode node) {
         if (node.pointIDs == null) {
@@ -773,14 +1293,18 @@ public final class MzTree
      * @param mzMax mz upper bound
      * @param rtMin rt lower bound
      * @param rtMax rt upper bound
+     * @param intMin intensity lower bound
+     * @param intMax intensity upper bound
      * @return True if node's bounds overlap search bounds, false otherwise
      */
-    private boolean doesOverlap(MzTreeNode node, double mzMin, double mzMax, float rtMin, float rtMax)
+    private boolean doesOverlap(MzTreeNode node, double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax)
     {
         return  // bounds overlap in mz
                 (node.mzMin <= mzMax && node.mzMax >= mzMin) &&
                 // bounds overlap in rt
-                (node.rtMin <= rtMax && node.rtMax >= rtMin);
+                (node.rtMin <= rtMax && node.rtMax >= rtMin) &&
+                // bounds overlap in intensity
+                (node.intMin <= intMax && node.intMax >= intMin);
     }
     
     //***********************************************//
@@ -836,11 +1360,11 @@ public final class MzTree
             // get the points of the data range
             // THIS IS WHERE THE OPTIMIZATION PROBLEM STARTS
             // currently loads all pertinent points into memory (could be the whole file)
-            List<MsDataPoint> points = this.query(minMZ, maxMZ, minRT, maxRT, 0);
+            PointStore points = this.query(minMZ, maxMZ, minRT, maxRT, 0);
             
             // write away!
-            for (MsDataPoint p : points)
-                writer.writeNext( new String[] {Double.toString(p.mz), Float.toString(p.rt), Double.toString(p.intensity), Integer.toString(p.meta1) });
+            for (int i = 0; i < points.size(); i++)
+                writer.writeNext( new String[] {Double.toString(points.getMz(i)), Float.toString(points.getRt(i)), Double.toString(points.getIntensity(i)), Integer.toString(points.getMeta1(i)) });
             
 
             return points.size();
@@ -867,19 +1391,17 @@ public final class MzTree
     //***********************************************//
 
     /**
-     * Converts a csv row MsDataPoint to MsDataPoint object
+     * Converts a csv row to a point, appending it to points
+     * @param points store to append the point to
      * @param line
-     * @return
      */
-    private MsDataPoint csvRowToMsDataPoint(String[] line)
+    private void addCsvRow(PointStore points, String[] line)
     {
         double mz = Double.parseDouble(line[0]);
         float rt = Float.parseFloat(line[1]);
         double intensity = Double.parseDouble(line[2]);
         int meta1 = Integer.parseInt(line[3]);
-        MsDataPoint point = new MsDataPoint(0, mz, rt, intensity);
-        point.meta1 = meta1;
-        return point;
+        points.add(0, mz, rt, intensity, meta1);
     }
 
     public void close() 
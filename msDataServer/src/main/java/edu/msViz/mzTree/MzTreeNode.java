@@ -8,7 +8,6 @@ package edu.msViz.mzTree;
 import edu.msViz.mzTree.summarization.SummarizationStrategy;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Node class for MzTree
@@ -29,8 +28,9 @@ public class MzTreeNode {
     //Child nodes
     public ArrayList<MzTreeNode> children;
     
-    // IDs of the MsDataPoints belonging to this node
-    public List<Integer> pointIDs;
+    // IDs of the points belonging to this node, loaded lazily by concurrent queries
+    // (volatile publishes the array, which is filled before it is assigned)
+    public volatile int[] pointIDs;
     
     //minimum mz at this node and below
     public double mzMin;
@@ -50,6 +50,10 @@ public class MzTreeNode {
     // maximum int at this node and below
     public double intMax;
     
+    // total intensity of the dataset's points at this node and below
+    // (known while building only, weighs the node's summary in its parent's)
+    public double intensityMass;
+    
     /**
      * Constructor that doesn't require the number of children expected
      */
@@ -103,58 +107,120 @@ public class MzTreeNode {
     }
 
     /**
-     * Collects pointIDs of a dataset and discovers min/max mz/rt/int
-     * @param msData dataset to process
+     * Collects pointIDs of a dataset range and discovers min/max mz/rt/int
+     * @param msData dataset holding the leaf's points
+     * @param from index of the leaf's first point
+     * @param to index after the leaf's last point
      */
-    public void initLeaf(List<MsDataPoint> msData) {
+    public void initLeaf(PointStore msData, int from, int to) {
         
         // set pointIDs array
-        this.collectPointIDs(msData);
+        this.collectPointIDs(msData, from, to);
         
         // discover the minimums and maximums for mz,rt,int
-        for (int i = 0; i < msData.size(); i++) {
-            MsDataPoint curPoint = msData.get(i);
+        this.intensityMass = 0;
+        for (int i = from; i < to; i++) {
+            double mz = msData.getMz(i);
+            float rt = msData.getRt(i);
+            double intensity = msData.getIntensity(i);
+            this.intensityMass += intensity;
             
             // keep largest maxes, smallest mins
             // mz
-            mzMax = (curPoint.mz > mzMax) ? curPoint.mz : mzMax;
-            mzMin = (curPoint.mz < mzMin) ? curPoint.mz : mzMin;
+            mzMax = (mz > mzMax) ? mz : mzMax;
+            mzMin = (mz < mzMin) ? mz : mzMin;
             // rt
-            rtMax = (curPoint.rt > rtMax) ? (float)curPoint.rt : rtMax;
-            rtMin = (curPoint.rt < rtMin) ? (float)curPoint.rt : rtMin;
+            rtMax = (rt > rtMax) ? rt : rtMax;
+            rtMin = (rt < rtMin) ? rt : rtMin;
             // int
-            intMax = (curPoint.intensity > intMax) ? curPoint.intensity : intMax;
-            intMin = (curPoint.intensity < intMin) ? curPoint.intensity : intMin;
+            intMax = (intensity > intMax) ? intensity : intMax;
+            intMin = (intensity < intMin) ? intensity : intMin;
         }
     }
     
     /**
-     * Collects the pointIDs from the given points into pointIDs member
+     * Collects the pointIDs of a dataset range into pointIDs member
      * @param points dataset to process
+     * @param from index of the first point
+     * @param to index after the last point
      */
-    public void collectPointIDs(List<MsDataPoint> points){
-        this.pointIDs = points.stream().map(p -> p.pointID).collect(Collectors.toList());
+    public void collectPointIDs(PointStore points, int from, int to){
+        int[] ids = new int[to - from];
+        for (int i = from; i < to; i++)
+            ids[i - from] = points.getPointID(i);
+        this.pointIDs = ids;
     }
     
     /**
-     * Collects a summary from the set of all childrens' data points
+     * Collects a summary from the set of all childrens' data points.
+     * A child's points are its summary unless it is a leaf, so each point is weighted
+     * by the intensity mass of the child over the intensity of the child's points:
+     * every child then weighs in with the mass of all of the points below it.
      * @param numPoints number of points to collect
      * @param summarizer summarization strategy to gather sample with
-     * @param dataStorage
+     * @param childrensPoints points of all children, as referenced by their pointIDs
+     *                        (a leaf's pointIDs may have been released, see numSavedPoints)
+     * @return indices into childrensPoints of the summary's points, in ascending pointID order
      */
-    public void summarizeFromChildren(int numPoints, SummarizationStrategy summarizer, PointCache pointCache)
+    public int[] summarizeFromChildren(int numPoints, SummarizationStrategy summarizer, PointStore childrensPoints)
     {
-        List<MsDataPoint> childrensPoints = new ArrayList<>();
+        // weigh each child's points
+        double[] weights = new double[childrensPoints.size()];
+        this.intensityMass = 0;
+        int from = 0;
+        for (MzTreeNode child : this.children) {
+            int to = from + ((child.pointIDs != null) ? child.pointIDs.length : child.numSavedPoints);
+            
+            double pointsMass = 0;
+            for (int i = from; i < to; i++)
+                pointsMass += childrensPoints.getIntensity(i);
+            double weight = (pointsMass > 0) ? child.intensityMass / pointsMass : 1;
+            for (int i = from; i < to; i++)
+                weights[i] = weight;
+            
+            this.intensityMass += child.intensityMass;
+            from = to;
+        }
         
+        // summarize, then order the summary by pointID so its IDs delta encode compactly
+        // (a rank ordered tree's PointCache sorts the block by rank as it is loaded)
+        int[] selected = summarizer.summarize(childrensPoints, weights, numPoints);
+        double[] ids = new double[selected.length];
+        for (int i = 0; i < selected.length; i++)
+            ids[i] = childrensPoints.getPointID(selected[i]);
+        int[] order = PointStore.argsort(ids);
+        int[] sorted = new int[selected.length];
+        for (int i = 0; i < order.length; i++)
+            sorted[i] = selected[order[i]];
+        selected = sorted;
         
-        // collect all childrens' MsDataPoints from cache
-        for(MzTreeNode childNode : this.children) {
-            childrensPoints.addAll(pointCache.retrievePoints(childNode.pointIDs));
-        }
+        // collect point IDs
+        int[] summaryIDs = new int[selected.length];
+        for (int i = 0; i < selected.length; i++)
+            summaryIDs[i] = childrensPoints.getPointID(selected[i]);
+        this.pointIDs = summaryIDs;
         
-        // summarize and collect point IDs
-        this.collectPointIDs(summarizer.summarize(childrensPoints, numPoints));
+        return selected;
+    }
+    
+    /**
+     * Concatenates the pointIDs of the given nodes into a single array
+     * @param nodes nodes whose pointIDs have been loaded
+     * @return all of the nodes' pointIDs, in node order
+     */
+    public static int[] concatPointIDs(List<MzTreeNode> nodes)
+    {
+        int numPointIDs = 0;
+        for(MzTreeNode node : nodes)
+            numPointIDs += node.pointIDs.length;
         
+        int[] allPointIDs = new int[numPointIDs];
+        int offset = 0;
+        for(MzTreeNode node : nodes) {
+            System.arraycopy(node.pointIDs, 0, allPointIDs, offset, node.pointIDs.length);
+            offset += node.pointIDs.length;
+        }
+        return allPointIDs;
     }
     
     /**
@@ -0,0 +1,234 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Spectrum byte offsets of an indexedmzML file, read from the offset index at the
+ * tail of the file. Each spectrum can be parsed on its own from its offset, and
+ * through a shared FileChannel any number of threads may parse spectra at once.
+ */
+class MzmlIndex
+{
+    private static final Logger LOGGER = Logger.getLogger(MzmlIndex.class.getName());
+
+    // number of bytes at the end of the file searched for the indexListOffset element
+    private static final int TAIL_NUM_BYTES = 4096;
+
+    // buffer size of a spectrum reader, most spectra are parsed from a few buffers
+    private static final int READ_BUFFER_NUM_BYTES = 16384;
+
+    private static final Pattern INDEX_LIST_OFFSET = Pattern.compile("<indexListOffset>\\s*(\\d+)\\s*</indexListOffset>");
+
+    private static final byte[] SPECTRUM_TAG = "<spectrum".getBytes(StandardCharsets.US_ASCII);
+
+    // shared by all threads, creating readers from a configured factory is thread safe
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    // byte offset of each spectrum, followed by the offset of the index list
+    // which bounds the final spectrum
+    private final long[] offsets;
+
+    private MzmlIndex(long[] offsets)
+    {
+        this.offsets = offsets;
+    }
+
+    /**
+     * Reads the spectrum offset index of an mzML file
+     * @param filePath path to mzML file
+     * @return the file's index, or null if the file is not indexed or its index does not
+     *         match the spectra in the file
+     */
+    static MzmlIndex read(String filePath)
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ))
+        {
+            long fileSize = channel.size();
+
+            // the index list offset is recorded after the index, at the very end of the file
+            int tailSize = (int) Math.min(TAIL_NUM_BYTES, fileSize);
+            ByteBuffer tail = ByteBuffer.allocate(tailSize);
+            readFully(channel, tail, fileSize - tailSize);
+            Matcher matcher = INDEX_LIST_OFFSET.matcher(new String(tail.array(), StandardCharsets.US_ASCII));
+            if (!matcher.find())
+                return null;
+            long indexListOffset = Long.parseLong(matcher.group(1));
+            if (indexListOffset >= fileSize)
+                return null;
+
+            long[] offsets = readSpectrumOffsets(channel, indexListOffset);
+            if (offsets.length == 0)
+                return null;
+            offsets = Arrays.copyOf(offsets, offsets.length + 1);
+            offsets[offsets.length - 1] = indexListOffset;
+
+            // offsets must ascend and each must point at a spectrum element
+            ByteBuffer tag = ByteBuffer.allocate(SPECTRUM_TAG.length);
+            for (int i = 0; i < offsets.length - 1; i++)
+            {
+                if (offsets[i] < 0 || offsets[i] + SPECTRUM_TAG.length > offsets[i + 1])
+                    return invalid(filePath, i);
+
+                tag.clear();
+                readFully(channel, tag, offsets[i]);
+                if (!Arrays.equals(tag.array(), SPECTRUM_TAG))
+                    return invalid(filePath, i);
+            }
+
+            return new MzmlIndex(offsets);
+        }
+        catch (IOException | XMLStreamException | NumberFormatException ex)
+        {
+            LOGGER.log(Level.INFO, "Could not read spectrum index of " + filePath + ", parsing it sequentially", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Number of spectra in the index
+     * @return number of spectra
+     */
+    int size()
+    {
+        return this.offsets.length - 1;
+    }
+
+    /**
+     * Opens a reader on a single spectrum, which ends the reader's input
+     * @param channel channel on the mzML file
+     * @param i index of the spectrum
+     * @return reader positioned at the spectrum's start element
+     * @throws XMLStreamException
+     * @throws DataFormatException if the offset does not hold a spectrum
+     */
+    XMLStreamReader openSpectrum(FileChannel channel, int i) throws XMLStreamException, DataFormatException
+    {
+        InputStream in = new BufferedInputStream(new ChannelRangeInputStream(channel, this.offsets[i], this.offsets[i + 1]), READ_BUFFER_NUM_BYTES);
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in, StandardCharsets.UTF_8.name());
+
+        if (reader.nextTag() != XMLStreamReader.START_ELEMENT || !reader.getLocalName().equals("spectrum"))
+        {
+            reader.close();
+            throw new DataFormatException("No spectrum found at offset " + this.offsets[i]);
+        }
+        return reader;
+    }
+
+    /* Reads the offset elements of the spectrum index in the index list at indexListOffset */
+    private static long[] readSpectrumOffsets(FileChannel channel, long indexListOffset) throws IOException, XMLStreamException
+    {
+        long[] offsets = new long[1024];
+        int numOffsets = 0;
+
+        InputStream in = new BufferedInputStream(new ChannelRangeInputStream(channel, indexListOffset, channel.size()), READ_BUFFER_NUM_BYTES);
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in, StandardCharsets.UTF_8.name());
+        try
+        {
+            boolean inSpectrumIndex = false;
+            while (reader.hasNext())
+            {
+                reader.next();
+
+                if (reader.getEventType() == XMLStreamReader.START_ELEMENT)
+                {
+                    if (reader.getLocalName().equals("index"))
+                        inSpectrumIndex = "spectrum".equals(reader.getAttributeValue(null, "name"));
+
+                    else if (inSpectrumIndex && reader.getLocalName().equals("offset"))
+                    {
+                        if (numOffsets == offsets.length)
+                            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                        offsets[numOffsets++] = Long.parseLong(reader.getElementText().trim());
+                    }
+                }
+
+                // stop at the end of the index list, the rest of the file is not part of the fragment
+                if (reader.getEventType() == XMLStreamReader.END_ELEMENT && reader.getLocalName().equals("indexList"))
+                    break;
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return Arrays.copyOf(offsets, numOffsets);
+    }
+
+    private static MzmlIndex invalid(String filePath, int i)
+    {
+        LOGGER.log(Level.INFO, "Spectrum index of " + filePath + " does not match spectrum " + i + ", parsing it sequentially");
+        return null;
+    }
+
+    /* Fills buf from the channel starting at position using positional reads */
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            int numRead = channel.read(buf, position);
+            if (numRead < 0)
+                throw new IOException("File ended at position " + position);
+            position += numRead;
+        }
+    }
+
+    /**
+     * Stream over a byte range of a channel using positional reads, which
+     * neither use nor move the channel's position
+     */
+    private static class ChannelRangeInputStream extends InputStream
+    {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChannelRangeInputStream(FileChannel channel, long start, long end)
+        {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (this.read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (this.position >= this.end)
+                return -1;
+
+            len = (int) Math.min(len, this.end - this.position);
+            int numRead = this.channel.read(ByteBuffer.wrap(b, off, len), this.position);
+            if (numRead > 0)
+                this.position += numRead;
+            return numRead;
+        }
+    }
+}
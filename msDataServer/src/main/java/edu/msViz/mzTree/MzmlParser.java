@@ -4,11 +4,20 @@
  * and open the template in the editor.
  */
 package edu.msViz.mzTree;
+import java.io.Closeable;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.DataFormatException;
 
 
@@ -17,10 +26,14 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
 /**
- *
+ * Parses the MS1 points of an mzML file. The calling thread walks the XML and
+ * hands each spectrum's still-encoded arrays to a pool of decoding threads,
+ * collecting the decoded spectra in document (RT) order. Spectra of an indexedmzML
+ * file are instead parsed by the decoding threads too, each from its indexed offset.
+ * The parser must be closed to stop its decoding threads if a read does not complete.
  * @author André
  */
-public class MzmlParser {
+public class MzmlParser implements Closeable {
         
     /**
      * Accession values used by mzML to classify cvParam values
@@ -37,12 +50,28 @@ public class MzmlParser {
      * Minimum intensity required for a point to be included in point retrieval
      */
     private static final double MIN_INTENSITY_THRESHOLD = 1;
+
+    /**
+     * Number of threads decoding spectra, the remaining core scans the XML
+     */
+    private static final int NUM_DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    /**
+     * Maximum number of spectra scanned ahead of collection, bounding the
+     * memory held by encoded and decoded spectra awaiting collection
+     */
+    private static final int MAX_PENDING_SPECTRA = NUM_DECODE_THREADS * 4;
     
     /**
      * XML stream reader (mzML is XML because... well who knows)
      */
     private XMLStreamReader reader;
     
+    /**
+     * File stream beneath reader, which does not close it
+     */
+    private FileInputStream readerStream;
+    
     /**
      * path to targeted mzml file
      */
@@ -54,13 +83,43 @@ public class MzmlParser {
      */
     private int numPoints = -1;
     
+    /**
+     * Spectrum offset index of the file, null if the file is not indexed
+     */
+    private final MzmlIndex index;
+    
+    /**
+     * Channel that indexed spectra are parsed from, open while a read is in progress
+     */
+    private FileChannel indexChannel;
+    
+    /**
+     * Index of the next indexed spectrum to hand to the decoding threads
+     */
+    private int nextSpectrum;
+    
+    /**
+     * Decodes scanned spectra, null when no read is in progress
+     */
+    private ExecutorService decodePool;
+
+    /**
+     * Spectra handed to decodePool and not yet collected, in document order
+     */
+    private final ArrayDeque<Future<DecodedSpectrum>> pendingSpectra = new ArrayDeque<>();
+
+    /**
+     * Collected spectra, whose arrays the decoding threads reuse for the next spectra
+     */
+    private final ConcurrentLinkedQueue<DecodedSpectrum> spareSpectra = new ConcurrentLinkedQueue<>();
+
     /**
      * When reading from mzml a chunk at a time the chunk will almost
      * always terminate amidst a spectrum. Since XmlStreamReader cannot backtrack,
      * we most preserve the paused spectrum in order to pick up where left off
      * on the previous chunk.
      */
-    private SpectrumInformation pausedSpecInfo;
+    private DecodedSpectrum pausedSpectrum;
     
     /**
      * Index of point in paused spectrum from which to resume next partition
@@ -73,19 +132,21 @@ public class MzmlParser {
     public int partitionSize;
     
     /**
-     * Default constructor, accepts path to mzML file
+     * Default constructor, accepts path to mzML file and reads its spectrum index if it has one
      * @param filePath path to mzML file to parse
-     * @throws javax.xml.stream.XMLStreamException
-     * @throws java.io.FileNotFoundException
      */
     public MzmlParser(String filePath)
     {
         this.mzmlFilePath = filePath;        
+        this.index = MzmlIndex.read(filePath);
     }
     
     /**
-     * Counts the points in the targeted mzML file
-     * @return the number of points in the mzML file
+     * Counts the points in the targeted mzML file. The array lengths recorded on each
+     * MS1 spectrum are summed without decoding any data, which includes points below
+     * the intensity threshold and so is an upper bound. Only if a spectrum does not
+     * record its array length are the points decoded and counted exactly.
+     * @return the number of points in the mzML file, or an upper bound of it
      * @throws IOException
      * @throws XMLStreamException
      * @throws DataFormatException 
@@ -93,36 +154,153 @@ public class MzmlParser {
     public int countPoints() throws IOException, XMLStreamException, DataFormatException
     {
         // don't recount!
-        if(this.numPoints == -1)
+        if(this.numPoints == -1 && this.index != null)
+        {
+            // sum the recorded array lengths, visiting only the start of each spectrum
+            this.numPoints = this.sumIndexedArrayLengths();
+        }
+        else if(this.numPoints == -1)
         {
             // instantiate xml reader on mzmlFilePath
-            this.reader = XMLInputFactory.newInstance().createXMLStreamReader(new FileInputStream(this.mzmlFilePath)); 
+            this.openReader();
             
-            // count points
+            // sum the recorded array lengths
+            try {
+                this.numPoints = this.sumArrayLengths();
+            } finally {
+                this.closeReader();
+            }
+        }
+        
+        // count points by decoding them if any length is missing
+        if(this.numPoints == -1)
+        {
             this.numPoints = 0;
             this.getAllPoints(true);
-            
-            // close reader
-            this.reader.close();
         }
       
         return this.numPoints;
     }
     
+    /**
+     * Sums the defaultArrayLength attributes of the MS1 spectra in the file pointed to by reader
+     * @return the sum of the array lengths, -1 if a spectrum is missing its array length
+     * @throws XMLStreamException
+     * @throws DataFormatException if the file contains no run element
+     */
+    private int sumArrayLengths() throws XMLStreamException, DataFormatException
+    {
+        boolean foundRun = false;
+        long sum = 0;
+        
+        // parsing loop
+        while (this.reader.hasNext()) 
+        {
+            // proceed cursor
+            this.reader.next();
+            
+            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("run"))
+                foundRun = true;
+            
+            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("spectrum"))
+            {
+                int arrayLength = MzmlParser.examineArrayLength(this.reader);
+                if (arrayLength == -1)
+                    return -1;
+                sum += arrayLength;
+            }
+        }
+        
+        // if no run START_ELEMENT is found
+        if (!foundRun)
+            throw new DataFormatException("No run element found in mzML file: " + this.mzmlFilePath);
+        
+        return (int) Math.min(sum, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Sums the defaultArrayLength attributes of the MS1 spectra of an indexed file,
+     * parsing each spectrum from its offset only up to its binary data
+     * @return the sum of the array lengths, -1 if a spectrum is missing its array length
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws DataFormatException 
+     */
+    private int sumIndexedArrayLengths() throws IOException, XMLStreamException, DataFormatException
+    {
+        long sum = 0;
+        
+        try (FileChannel channel = FileChannel.open(Paths.get(this.mzmlFilePath), StandardOpenOption.READ))
+        {
+            for (int i = 0; i < this.index.size(); i++)
+            {
+                XMLStreamReader spectrumReader = this.index.openSpectrum(channel, i);
+                try {
+                    int arrayLength = MzmlParser.examineArrayLength(spectrumReader);
+                    if (arrayLength == -1)
+                        return -1;
+                    sum += arrayLength;
+                } finally {
+                    spectrumReader.close();
+                }
+            }
+        }
+        
+        return (int) Math.min(sum, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Reads the array length of the spectrum whose start element is pointed to by reader, 
+     * leaving reader at the spectrum's binaryDataArrayList (or end if it has none)
+     * @param reader xml stream reader
+     * @return the spectrum's defaultArrayLength, 0 if it is not ms level 1 data, -1 if it is missing
+     * @throws XMLStreamException 
+     */
+    private static int examineArrayLength(XMLStreamReader reader) throws XMLStreamException
+    {
+        int arrayLength = MzmlParser.parseArrayLength(reader, "defaultArrayLength");
+        if (arrayLength == -1)
+            return -1;
+        
+        // the spectrum's cvParams precede its binary data arrays
+        short msLevel = 0;
+        while (reader.hasNext()) 
+        {
+            reader.next();
+            
+            if (reader.getEventType() == XMLStreamReader.START_ELEMENT && reader.getLocalName().equals("cvParam"))
+            {
+                String[] cvParamPair = MzmlParser.examineCVParam(reader);
+                if (MzmlParser.ACCESSION_MS_LEVEL.equals(cvParamPair[0]))
+                    msLevel = Short.parseShort(cvParamPair[1]);
+            }
+            
+            if ((reader.getEventType() == XMLStreamReader.START_ELEMENT && reader.getLocalName().equals("binaryDataArrayList"))
+                    || (reader.getEventType() == XMLStreamReader.END_ELEMENT && reader.getLocalName().equals("spectrum")))
+                break;
+        }
+        
+        // only ms level 1 data is parsed (a missing level is taken as 1)
+        return (msLevel == 0 || msLevel == 1) ? arrayLength : 0;
+    }
+    
     /**
      * Initializes a partitioned read of the dataset
      * @param n partition size
      * @throws XMLStreamException
-     * @throws FileNotFoundException 
+     * @throws IOException 
      */
-    public void initPartitionedRead(int n) throws XMLStreamException, FileNotFoundException
+    public void initPartitionedRead(int n) throws XMLStreamException, IOException
     {
         // retain the partition size
         this.partitionSize = n;
         
         // instantiate xml reader on mzmlFilePath
-        this.reader = XMLInputFactory.newInstance().createXMLStreamReader(new FileInputStream(this.mzmlFilePath));
+        // (indexed spectra are parsed from their offsets instead)
+        if(this.index == null)
+            this.openReader();
         
+        this.startDecoding();
     }
     
     /**
@@ -132,39 +310,41 @@ public class MzmlParser {
      * @throws DataFormatException
      * @throws IOException 
      */
-    public List<MsDataPoint> readPartition() throws XMLStreamException, DataFormatException, IOException
+    public PointStore readPartition() throws XMLStreamException, DataFormatException, IOException
     {
         // points collection for this partition
-        List<MsDataPoint> results = new ArrayList<>();
+        PointStore results = new PointStore(this.partitionSize);
         
-        // if the paused spectrum info isn't null then process it first
-        while(this.pausedSpecInfo != null)
+        try
         {
-            this.decodeAndCollectData(this.pausedSpecInfo, results, false, this.pauseIndex, this.partitionSize);
-        }
-
-        // parsing loop
-        while (this.reader.hasNext()) 
-        {    
-            // proceed cursor
-            this.reader.next();
+            // if the paused spectrum isn't null then process it first
+            if(this.pausedSpectrum != null)
+                this.collectSpectrum(this.pausedSpectrum, results, false, this.pauseIndex, this.partitionSize);
 
-            // look for the start of a "spectrum" element
-            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("spectrum")) 
-            {
-                
-                this.parseSpectrum(results, false, 0, this.partitionSize);
-                
-                if(results.size() == this.partitionSize)
-                    return results;
+            // parsing loop, collecting the oldest spectra while too many are pending
+            while (results.size() < this.partitionSize && this.submitNextSpectrum()) 
+            {    
+                this.collectPendingSpectra(results, false, this.partitionSize, MzmlParser.MAX_PENDING_SPECTRA);
             }
+
+            // collect the spectra still being decoded once every spectrum is submitted
+            if (results.size() < this.partitionSize)
+                this.collectPendingSpectra(results, false, this.partitionSize, 0);
+        }
+        catch (XMLStreamException | DataFormatException | IOException | RuntimeException ex)
+        {
+            this.stopDecoding();
+            throw ex;
         }
         
-        // if made it this far the partition size does not evenly divide the dataset
-        // and this is the final, reduced size partition
-        
-        // close reader and return current result set
-        this.reader.close();
+        // if made it this far with everything collected the partition size does not
+        // evenly divide the dataset and this is the final, reduced size partition
+        if (results.size() < this.partitionSize)
+        {
+            // close reader and return current result set
+            this.stopDecoding();
+            this.closeReader();
+        }
         return results;
     }
     
@@ -173,12 +353,12 @@ public class MzmlParser {
      * Reads the MS data points contained within the mzML file specified by filepath
      * TODO current implementation will return only the contents of the first run element,
      *      extend to handle more than run element
-     * @return array of MsDataPoints found in file
+     * @return the points found in file
      * @throws javax.xml.stream.XMLStreamException
      * @throws DataFormatException
      * @throws IOException 
      */
-    public List<MsDataPoint> readAllData() throws IOException, XMLStreamException, DataFormatException 
+    public PointStore readAllData() throws IOException, XMLStreamException, DataFormatException 
     {
         return this.getAllPoints(false);
     }
@@ -186,59 +366,106 @@ public class MzmlParser {
     /**
      * Gets all the data from the targeted mzml file, optionally counting the data instead of collecting
      * @param isCount if true this method merely accumulates a point count in numPoints member
-     * @return Array of MsDataPoints discovered in the mzml file (null if isCount set)
+     * @return points discovered in the mzml file (empty if isCount set)
      * @throws IOException
      * @throws XMLStreamException
      * @throws DataFormatException 
      */
-    private List<MsDataPoint> getAllPoints(boolean isCount) throws IOException, XMLStreamException, DataFormatException
+    private PointStore getAllPoints(boolean isCount) throws IOException, XMLStreamException, DataFormatException
     {
+        // indexed spectra are parsed from their offsets
+        if(this.index != null)
+            return this.getAllIndexedPoints(isCount);
+        
         // instantiate xml reader on mzmlFilePath
-        this.reader = XMLInputFactory.newInstance().createXMLStreamReader(new FileInputStream(this.mzmlFilePath)); 
+        this.openReader();
         
-        // parsing loop
-        while (this.reader.hasNext()) 
-        {    
-            // proceed cursor
-            this.reader.next();
+        this.startDecoding();
+        try
+        {
+            // parsing loop
+            while (this.reader.hasNext()) 
+            {    
+                // proceed cursor
+                this.reader.next();
 
-            // look for the start of a "run" element
-            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("run")) 
-            {
-                // returns all data points within a run
-                List<MsDataPoint> data = this.parseRun(isCount);
-                
-                if(!isCount)
+                // look for the start of a "run" element
+                if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("run")) 
                 {
-                    this.numPoints = data.size();
-                }
-        
-                this.reader.close();
+                    // returns all data points within a run
+                    PointStore data = this.parseRun(isCount);
 
-                return data;
+                    if(!isCount)
+                    {
+                        this.numPoints = data.size();
+                    }
+
+                    this.closeReader();
+
+                    return data;
+                }
             }
         }
+        finally
+        {
+            this.stopDecoding();
+        }
         
-        this.reader.close();
+        this.closeReader();
         
         // if no run START_ELEMENT is found
         throw new DataFormatException("No run element found in mzML file: " + this.mzmlFilePath);
     }
     
+    /**
+     * Gets all the data of the spectra in the file's index, optionally counting the data instead of collecting
+     * @param isCount if true this method merely accumulates a point count in numPoints member
+     * @return points discovered in the mzml file (empty if isCount set)
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws DataFormatException 
+     */
+    private PointStore getAllIndexedPoints(boolean isCount) throws IOException, XMLStreamException, DataFormatException
+    {
+        // point results collection, sized up front when the points have been counted
+        PointStore pointResults = new PointStore(isCount || this.numPoints < 0 ? 16 : this.numPoints);
+        
+        this.startDecoding();
+        try
+        {
+            // submission loop, collecting the oldest spectra while too many are pending
+            while (this.submitNextSpectrum())
+            {
+                this.collectPendingSpectra(pointResults, isCount, Integer.MAX_VALUE, MzmlParser.MAX_PENDING_SPECTRA);
+            }
+            this.collectPendingSpectra(pointResults, isCount, Integer.MAX_VALUE, 0);
+        }
+        finally
+        {
+            this.stopDecoding();
+        }
+        
+        if(!isCount)
+        {
+            this.numPoints = pointResults.size();
+        }
+        return pointResults;
+    }
+    
     /**
      * Parses a run element currently pointed to by reader, returning all contained MS datapoints
      * TODO current implementation will return the contents of the final spectrumList only, extend
      *      to return the contents of all spectrumList if more than one.
      * @param isCount flag indicating the data should merely be counted
      * @param count point count accumulator     
-     * @return Array of MSDataPoints found within the run
+     * @return points found within the run
      * @throws XMLStreamException
      * @throws DataFormatException
      * @throws IOException 
      */
-    private List<MsDataPoint> parseRun(boolean isCount) throws XMLStreamException, DataFormatException, IOException {
+    private PointStore parseRun(boolean isCount) throws XMLStreamException, DataFormatException, IOException {
         
-        List<MsDataPoint> runPoints = null;
+        PointStore runPoints = null;
         
         // parsing loop, return at end of run element
         while (this.reader.hasNext()) 
@@ -266,18 +493,19 @@ public class MzmlParser {
     }
     
     /**
-     * Parses the contents of the spectrumList currently pointed to by reader, returns all contained MsDataPoints
+     * Parses the contents of the spectrumList currently pointed to by reader, returns all contained points
      * @param isCount flag indicating the data should merely be counted
      * @param count point count accumulator
-     * @return Array of MsDatapoints contained within the spectrum list
+     * @return points contained within the spectrum list
      * @throws XMLStreamException
      * @throws DataFormatException
      * @throws IOException 
      */
-    private List<MsDataPoint> parseSpectrumList(boolean isCount) throws XMLStreamException, DataFormatException, IOException {
+    private PointStore parseSpectrumList(boolean isCount) throws XMLStreamException, DataFormatException, IOException {
         
-        // point results collection
-        ArrayList<MsDataPoint> pointResults = new ArrayList<>();
+        // point results collection, sized up front when the points have been counted
+        // (the count may be an upper bound, the excess capacity is never filled)
+        PointStore pointResults = new PointStore(isCount || this.numPoints < 0 ? 16 : this.numPoints);
         
         // parsing loop
         while (reader.hasNext()) 
@@ -288,12 +516,13 @@ public class MzmlParser {
             // parse discovered spectrums, collect contained points
             if (reader.getEventType() == XMLStreamReader.START_ELEMENT && reader.getLocalName().equals("spectrum")) 
             {
-                this.parseSpectrum(pointResults, isCount, 0, Integer.MAX_VALUE);
+                this.parseSpectrum(pointResults, isCount, Integer.MAX_VALUE);
             }
             
-            // return points at end of spectrumlist
+            // return points at end of spectrumlist, once every spectrum is decoded
             if (reader.getEventType() == XMLStreamReader.END_ELEMENT && reader.getLocalName().equals("spectrumList")) 
             {
+                this.collectPendingSpectra(pointResults, isCount, Integer.MAX_VALUE, 0);
                 return pointResults;
             }
         }
@@ -303,16 +532,110 @@ public class MzmlParser {
     }
     
     /**
-     * Parses a spectrum element, storing all discovered points in pointCollection
+     * Parses a spectrum element and hands it to the decoding threads. If too many
+     * spectra are pending, the oldest are first collected into pointCollection
      * @param pointCollection collection to store all discovered points
      * @param isCount flag indicating data should only be counted
-     * @param count data count accumulator
+     * @param pointLimit number of points at which pointCollection is full
      * @throws XMLStreamException
      * @throws DataFormatException
      * @throws IOException 
      */
-    private void parseSpectrum(List<MsDataPoint> pointCollection, boolean isCount, int startIndex, int pointLimit) throws XMLStreamException, DataFormatException, IOException {
+    private void parseSpectrum(PointStore pointCollection, boolean isCount, int pointLimit) throws XMLStreamException, DataFormatException, IOException {
+        
+        this.submitSpectrum(MzmlParser.scanSpectrum(this.reader));
+        
+        // collect data points of the oldest spectra while too many are pending
+        this.collectPendingSpectra(pointCollection, isCount, pointLimit, MzmlParser.MAX_PENDING_SPECTRA);
+    }
+    
+    /**
+     * Hands the next spectrum of the file to the decoding threads. Spectra are scanned
+     * from reader, or if the file is indexed are parsed by the decoding threads as well
+     * @return false if every spectrum has been submitted
+     * @throws XMLStreamException 
+     * @throws DataFormatException 
+     */
+    private boolean submitNextSpectrum() throws XMLStreamException, DataFormatException
+    {
+        if (this.index != null)
+        {
+            if (this.nextSpectrum == this.index.size())
+                return false;
+            
+            int i = this.nextSpectrum++;
+            FileChannel channel = this.indexChannel;
+            this.pendingSpectra.add(this.decodePool.submit(() -> this.parseIndexedSpectrum(channel, i)));
+            return true;
+        }
+        
+        // parsing loop, ends after the next spectrum element
+        while (this.reader.hasNext()) 
+        {    
+            // proceed cursor
+            this.reader.next();
+
+            // look for the start of a "spectrum" element
+            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("spectrum")) 
+            {
+                this.submitSpectrum(MzmlParser.scanSpectrum(this.reader));
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Hands a scanned spectrum to the decoding threads
+     * @param spectrumInfo scanned spectrum, null if it is not to be decoded (see scanSpectrum)
+     */
+    private void submitSpectrum(SpectrumInformation spectrumInfo)
+    {
+        if (spectrumInfo == null)
+            return;
+        
+        // the encoded data are views of this thread's decoder, which the next spectrum overwrites
+        spectrumInfo.mzEncoding.ownData();
+        spectrumInfo.intensityEncoding.ownData();
+        this.pendingSpectra.add(this.decodePool.submit(() -> this.decodeSpectrum(spectrumInfo)));
+    }
+    
+    /**
+     * Parses and decodes an indexed spectrum. Runs on a decoding thread.
+     * @param channel channel on the mzML file
+     * @param i index of the spectrum
+     * @return decoded spectrum, without points if it is not ms level 1 data
+     * @throws XMLStreamException
+     * @throws DataFormatException 
+     */
+    private DecodedSpectrum parseIndexedSpectrum(FileChannel channel, int i) throws XMLStreamException, DataFormatException
+    {
+        XMLStreamReader spectrumReader = this.index.openSpectrum(channel, i);
+        try
+        {
+            SpectrumInformation spectrumInfo = MzmlParser.scanSpectrum(spectrumReader);
+            return (spectrumInfo != null) ? this.decodeSpectrum(spectrumInfo) : this.spareSpectrum();
+        }
+        finally
+        {
+            spectrumReader.close();
+        }
+    }
+    
+    /**
+     * Parses a spectrum element pointed to by reader, collecting its still-encoded
+     * (base64 decoded but still compressed) data as views of the calling thread's decoder
+     * @param reader xml stream reader
+     * @return the spectrum's information, null if it is not ms level 1 data or lacks an m/z or intensity array
+     * @throws XMLStreamException 
+     * @throws DataFormatException if binary data is not base64
+     */
+    private static SpectrumInformation scanSpectrum(XMLStreamReader reader) throws XMLStreamException, DataFormatException {
        
+        // the previous spectrum's encoded data is no longer needed
+        Decoder decoder = Decoder.forCurrentThread();
+        decoder.clearBase64();
+        
         // a new SpectrumInformation object is created, this stores all the relevant data in cvParams for one spectrum
         SpectrumInformation spectrumInfo = new SpectrumInformation();
         
@@ -326,109 +649,264 @@ public class MzmlParser {
         // exception.
         
         // parsing loop
-        while (this.reader.hasNext()) 
+        while (reader.hasNext()) 
         {
             // proceed cursor
-            this.reader.next();
+            reader.next();
             
             // START_ELEMENT events to handle
-            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT) 
+            if (reader.getEventType() == XMLStreamReader.START_ELEMENT) 
             {
                 // cvParam element
-                if (this.reader.getLocalName().equals("cvParam")) 
+                if (reader.getLocalName().equals("cvParam")) 
                 {
-                    this.updateSpectrumInformation(examineCVParam(this.reader), spectrumInfo, currentEncoding);
+                    MzmlParser.updateSpectrumInformation(MzmlParser.examineCVParam(reader), spectrumInfo, currentEncoding);
                     
                     // only process ms level 1 data
                     if(spectrumInfo.msLevel != 0 && spectrumInfo.msLevel != 1)
-                        return;
+                        return null;
                 }
                 
                 // 64-bit encoded binary data
-                if (this.reader.getLocalName().equals("binary")) 
+                if (reader.getLocalName().equals("binary")) 
                 {
-                    currentEncoding.encoding = reader.getElementText();
+                    currentEncoding.data = decoder.readBase64(reader);
                     if(currentEncoding.isMz) spectrumInfo.mzEncoding = currentEncoding; 
                     else spectrumInfo.intensityEncoding = currentEncoding;
                 }
             }
             
             // END_ELEMENT events to handle
-            if (this.reader.getEventType() == XMLStreamReader.END_ELEMENT) 
+            if (reader.getEventType() == XMLStreamReader.END_ELEMENT) 
             {
                 // finish 64-bit encoded data array
-                if (this.reader.getLocalName().equals("binaryDataArray")) 
+                if (reader.getLocalName().equals("binaryDataArray")) 
                 { 
                     // reinstantiate currentEncoding for potential additional encoding 
                     currentEncoding = new EncodedData();
                 }
                 
-                // spectrum finish
-                if (this.reader.getLocalName().equals("spectrum")) 
+                // spectrum finish, a spectrum without both arrays has no points
+                if (reader.getLocalName().equals("spectrum")) 
                 {
-                    // decode 64-bit encoded data, collect data points 
-                    this.decodeAndCollectData(spectrumInfo, pointCollection, isCount, startIndex, pointLimit);
-                    return;
+                    if (spectrumInfo.mzEncoding == null || spectrumInfo.intensityEncoding == null)
+                        return null;
+                    return spectrumInfo;
                 }
                 
             }
         }
+        
+        return null;
     }
     
     /**
-     * Decodes the encoded spectrum data, packages as MsDataPoints and inserts points into pointCollection
-     * @param currentSpecInfo spectrum bundle to process
-     * @param pointCollection container to place discovered MsDataPoints
+     * Collects pending spectra, oldest first, until at most numToLeave are pending
+     * or pointCollection is full
+     * @param pointCollection container to place discovered points
      * @param isCount flag indicating the data should merely be counted
-     * @param count point count accumulator
+     * @param pointLimit number of points at which pointCollection is full
+     * @param numToLeave number of spectra that may remain pending
+     * @throws XMLStreamException
      * @throws DataFormatException
      * @throws IOException 
      */
-    private void decodeAndCollectData(SpectrumInformation currentSpecInfo, List<MsDataPoint> pointCollection, boolean isCount, int startIndex, int pointLimit) throws DataFormatException, IOException 
+    private void collectPendingSpectra(PointStore pointCollection, boolean isCount, int pointLimit, int numToLeave) throws XMLStreamException, DataFormatException, IOException
+    {
+        while (this.pendingSpectra.size() > numToLeave && pointCollection.size() < pointLimit)
+        {
+            this.collectSpectrum(this.awaitSpectrum(this.pendingSpectra.poll()), pointCollection, isCount, 0, pointLimit);
+        }
+    }
+    
+    /**
+     * Appends the points of a decoded spectrum to pointCollection, pausing the spectrum
+     * if pointCollection reaches pointLimit before all of its points are appended
+     * @param spectrum decoded spectrum to process
+     * @param pointCollection container to place discovered points
+     * @param isCount flag indicating the data should merely be counted
+     * @param startIndex index of the spectrum's first point to append
+     * @param pointLimit number of points at which pointCollection is full
+     */
+    private void collectSpectrum(DecodedSpectrum spectrum, PointStore pointCollection, boolean isCount, int startIndex, int pointLimit)
     {
         // the paused spectrum (if one existed) is no longer paused
-        this.pausedSpecInfo = null;
-        
-        // decode (and if necessary decompress) mz data encoding
-        double[] mzArrayDoubles;
-        if (currentSpecInfo.mzEncoding.isCompressed) 
-            mzArrayDoubles = Decoder.decodeCompressed(currentSpecInfo.mzEncoding.encoding, currentSpecInfo.mzEncoding.bits == 64); 
-        else
-            mzArrayDoubles = Decoder.decodeUncompressed(currentSpecInfo.mzEncoding.encoding, currentSpecInfo.mzEncoding.bits == 64);
-
-        // decode (and if necessary decompress) intensity data encoding
-        double[] intensityArrayDoubles;
-        if (currentSpecInfo.intensityEncoding.isCompressed)
-            intensityArrayDoubles = Decoder.decodeCompressed(currentSpecInfo.intensityEncoding.encoding, currentSpecInfo.intensityEncoding.bits == 64);
-        else
-            intensityArrayDoubles = Decoder.decodeUncompressed(currentSpecInfo.intensityEncoding.encoding, currentSpecInfo.intensityEncoding.bits == 64);
-
-        // creates a MsDataPoint for each (mz,rt,int) point and adds to the arrayList
+        this.pausedSpectrum = null;
+        
+        if(isCount)
+        {
+            this.numPoints += spectrum.numPoints - startIndex;
+            this.spareSpectra.add(spectrum);
+            return;
+        }
+        
+        // appends each (mz,rt,int) point to the point collection
         // terminates if pointCollection reaches pointLimit
-        for (int i = startIndex; i < mzArrayDoubles.length; i++) 
+        double[] mz = spectrum.mz.array;
+        double[] intensity = spectrum.intensity.array;
+        for (int i = startIndex; i < spectrum.numPoints; i++) 
         {
             // stop collection if pointCollection reaches limit
             if(pointCollection.size() == pointLimit)
             {
                 this.pauseIndex = i;
-                this.pausedSpecInfo = currentSpecInfo;
-                break;
+                this.pausedSpectrum = spectrum;
+                return;
             }
             
-            // if the data point's intensity is below the min threshold then THROW IT OUT
-            if (intensityArrayDoubles[i] >= MIN_INTENSITY_THRESHOLD) 
+            // assign point an ID of 0
+            // its ID will be assigned when written to data store
+            pointCollection.add(0, mz[i], spectrum.scanStartTime, intensity[i], 0);
+        }
+        
+        // the spectrum's arrays may be reused once all of its points are collected
+        this.spareSpectra.add(spectrum);
+    }
+    
+    /**
+     * Waits for a spectrum to be decoded, rethrowing the decoding thread's exception if decoding failed
+     * @param future pending decoded spectrum
+     * @return decoded spectrum
+     * @throws XMLStreamException
+     * @throws DataFormatException
+     * @throws IOException 
+     */
+    private DecodedSpectrum awaitSpectrum(Future<DecodedSpectrum> future) throws XMLStreamException, DataFormatException, IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding " + this.mzmlFilePath);
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof XMLStreamException)
+                throw (XMLStreamException) cause;
+            if (cause instanceof DataFormatException)
+                throw (DataFormatException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+    
+    /**
+     * Decodes (and if necessary decompresses) the encoded spectrum data into a spare
+     * spectrum, keeping the points meeting the intensity threshold. Runs on a decoding thread.
+     * The decoded arrays hold as many values as the data does, whatever length is recorded.
+     * @param specInfo spectrum bundle to decode
+     * @return decoded spectrum
+     * @throws DataFormatException 
+     */
+    private DecodedSpectrum decodeSpectrum(SpectrumInformation specInfo) throws DataFormatException
+    {
+        Decoder decoder = Decoder.forCurrentThread();
+        
+        DecodedSpectrum spectrum = this.spareSpectrum();
+        spectrum.scanStartTime = specInfo.scanStartTime;
+        EncodedData mzEncoding = specInfo.mzEncoding;
+        EncodedData intensityEncoding = specInfo.intensityEncoding;
+        decoder.decode(mzEncoding.data, mzEncoding.isCompressed, mzEncoding.bits == 64, spectrum.mz);
+        decoder.decode(intensityEncoding.data, intensityEncoding.isCompressed, intensityEncoding.bits == 64, spectrum.intensity);
+        
+        // if the data point's intensity is below the min threshold then THROW IT OUT
+        // retained points are compacted to the front of the arrays
+        double[] mz = spectrum.mz.array;
+        double[] intensity = spectrum.intensity.array;
+        int length = Math.min(spectrum.mz.length, spectrum.intensity.length);
+        for (int i = 0; i < length; i++)
+        {
+            if (intensity[i] >= MIN_INTENSITY_THRESHOLD)
             {
-                if(isCount)
-                    this.numPoints++;
-                else
-                {
-                    // assign point an ID of 0
-                    // its ID will be assigned when written to data store
-                    MsDataPoint myTuple = new MsDataPoint(0, mzArrayDoubles[i], (float)currentSpecInfo.scanStartTime, intensityArrayDoubles[i]);
-                    pointCollection.add(myTuple);
-                }
+                mz[spectrum.numPoints] = mz[i];
+                intensity[spectrum.numPoints] = intensity[i];
+                spectrum.numPoints++;
+            }
+        }
+        return spectrum;
+    }
+    
+    /**
+     * Takes a collected spectrum to decode into, or creates one if there is none
+     * @return empty spectrum
+     */
+    private DecodedSpectrum spareSpectrum()
+    {
+        DecodedSpectrum spectrum = this.spareSpectra.poll();
+        if (spectrum == null)
+            return new DecodedSpectrum();
+        spectrum.numPoints = 0;
+        return spectrum;
+    }
+    
+    /**
+     * Parses an array length attribute of the element pointed to by reader
+     * @param reader xml stream reader
+     * @param attributeName name of the attribute
+     * @return the array length, -1 if the attribute is missing or invalid
+     */
+    private static int parseArrayLength(XMLStreamReader reader, String attributeName)
+    {
+        String length = reader.getAttributeValue(null, attributeName);
+        if (length == null)
+            return -1;
+        try {
+            return Integer.parseInt(length);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Starts the decoding threads for a read of the file
+     * @throws IOException if the channel for indexed spectra cannot be opened
+     */
+    private void startDecoding() throws IOException
+    {
+        this.stopDecoding();
+        if (this.index != null)
+        {
+            this.indexChannel = FileChannel.open(Paths.get(this.mzmlFilePath), StandardOpenOption.READ);
+            this.nextSpectrum = 0;
+        }
+        this.decodePool = Executors.newFixedThreadPool(MzmlParser.NUM_DECODE_THREADS, runnable -> {
+            // decoding threads must not keep the application alive
+            Thread thread = new Thread(runnable, "mzML decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Stops the decoding threads, discarding pending and paused spectra
+     */
+    private void stopDecoding()
+    {
+        if (this.decodePool != null)
+        {
+            this.decodePool.shutdownNow();
+            this.decodePool = null;
+        }
+        this.pendingSpectra.clear();
+        this.spareSpectra.clear();
+        this.pausedSpectrum = null;
+        
+        if (this.indexChannel != null)
+        {
+            try {
+                this.indexChannel.close();
+            } catch (IOException ex) {
+                // nothing remains to be read
             }
-        }           
+            this.indexChannel = null;
+        }
     }
     
     /**
@@ -438,7 +916,7 @@ public class MzmlParser {
      * @param currentEncoding current encoded data object
      * @throws XMLStreamException 
      */
-    private void updateSpectrumInformation(String[] cvParamPair, SpectrumInformation currentSpecInfo, EncodedData currentEncoding) {
+    private static void updateSpectrumInformation(String[] cvParamPair, SpectrumInformation currentSpecInfo, EncodedData currentEncoding) {
         
         // null accession value implies badly formatted cvParam
         if (cvParamPair[0] == null) 
@@ -486,7 +964,7 @@ public class MzmlParser {
      * @return String array with elements [accession, value]
      * @throws XMLStreamException 
      */
-    private String[] examineCVParam(XMLStreamReader reader)
+    private static String[] examineCVParam(XMLStreamReader reader)
     {
         String accession = reader.getAttributeValue(null, "accession");
         String value = reader.getAttributeValue(null, "value");
@@ -494,13 +972,55 @@ public class MzmlParser {
     }  
     
     /**
-     * Override Object.finalize to include closing the reader on GC
-     * @throws Throwable 
+     * Opens reader on the mzML file
+     * @throws XMLStreamException
+     * @throws IOException 
+     */
+    private void openReader() throws XMLStreamException, IOException
+    {
+        this.closeReader();
+        this.readerStream = new FileInputStream(this.mzmlFilePath);
+        try {
+            this.reader = XMLInputFactory.newInstance().createXMLStreamReader(this.readerStream);
+        } catch (XMLStreamException | RuntimeException ex) {
+            this.closeReader();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Closes reader and the file beneath it, if open
+     * @throws XMLStreamException
+     * @throws IOException 
+     */
+    private void closeReader() throws XMLStreamException, IOException
+    {
+        try {
+            if (this.reader != null)
+                this.reader.close();
+        } finally {
+            this.reader = null;
+            if (this.readerStream != null)
+            {
+                this.readerStream.close();
+                this.readerStream = null;
+            }
+        }
+    }
+    
+    /**
+     * Stops the decoding threads and closes the file, abandoning any read in progress
+     * @throws IOException 
      */
     @Override
-    protected void finalize() throws Throwable{
-        super.finalize();
-        this.reader.close();
+    public void close() throws IOException
+    {
+        this.stopDecoding();
+        try {
+            this.closeReader();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
     }
        
 }
@@ -520,7 +1040,7 @@ class SpectrumInformation
      * Spectrum's start time (RT)
      */
     public float scanStartTime;
-        
+    
     /**
      * Spectrum's 64-bit encoded mz data
      */
@@ -532,6 +1052,32 @@ class SpectrumInformation
     public EncodedData intensityEncoding;
 }
 
+/**
+ * Decoded spectrum bundle, holding the points meeting the intensity threshold
+ */
+class DecodedSpectrum
+{
+    /**
+     * Spectrum's start time (RT)
+     */
+    public float scanStartTime;
+    
+    /**
+     * Decoded mz values, those up to numPoints meet the intensity threshold
+     */
+    public final Decoder.Values mz = new Decoder.Values();
+    
+    /**
+     * Decoded intensity values, those up to numPoints meet the intensity threshold
+     */
+    public final Decoder.Values intensity = new Decoder.Values();
+    
+    /**
+     * Number of points meeting the intensity threshold
+     */
+    public int numPoints;
+}
+
 /**
  * 64-bit encoded data bundle
  * @author Andre
@@ -554,9 +1100,20 @@ class EncodedData {
     public boolean isMz;
     
     /**
-     * 64-bit encoded data
+     * base64 decoded data, still compressed if isCompressed, from its position to its limit
      */
-    public String encoding;
+    public ByteBuffer data;
+    
+    /**
+     * Replaces the data, a view of a thread's decoder, with a copy of its own
+     * so that it may be decoded on another thread
+     */
+    public void ownData()
+    {
+        byte[] copy = new byte[this.data.remaining()];
+        this.data.duplicate().get(copy);
+        this.data = ByteBuffer.wrap(copy);
+    }
 }
 
 
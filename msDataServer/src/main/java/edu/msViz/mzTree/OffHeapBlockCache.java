@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Second cache tier holding node blocks outside of the java heap, in direct
+ * ByteBuffers. Blocks are kept as raw point records and decoded into a PointStore
+ * when hit, so a large working set costs the garbage collector nothing.
+ *
+ * BLOCK FORMAT (native byte order)
+ * POINT IDS: 4 bytes per point
+ * RECORDS  : 24 bytes per point, MZ (8, double), RT (4, float), INTEN (8, double), META1 (4, int)
+ */
+class OffHeapBlockCache
+{
+    // system property holding the tier's direct memory budget in bytes, 0 (default) disables the tier
+    static final String BUDGET_PROPERTY = "msViz.offHeapCacheBytes";
+
+    // number of bytes required to hold a point off heap (ID + record)
+    private static final int NUM_BYTES_PER_POINT = 4 + MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+
+    // encoded blocks keyed by nodeID, weighed by their size in direct memory
+    private final LruCache<Integer, ByteBuffer> blocks;
+
+    /**
+     * Default constructor
+     * @param numAllowedBytes direct memory allowed for cached blocks
+     */
+    OffHeapBlockCache(long numAllowedBytes)
+    {
+        this.blocks = new LruCache<>(numAllowedBytes, ByteBuffer::capacity);
+    }
+
+    /**
+     * Copies a node block into direct memory, unless it is already held or
+     * is larger than the whole budget
+     * @param nodeID ID of the block's node
+     * @param block the node's points
+     */
+    void put(int nodeID, PointStore block)
+    {
+        // check the budget before allocating, a rejected buffer would only be released once collected
+        long numBytes = (long) block.size() * NUM_BYTES_PER_POINT;
+        if (numBytes > this.blocks.getMaxWeight() || this.blocks.contains(nodeID))
+            return;
+
+        int n = block.size();
+        ByteBuffer buf = ByteBuffer.allocateDirect((int) numBytes).order(ByteOrder.nativeOrder());
+        int recordsStart = n * 4;
+        for (int i = 0; i < n; i++)
+        {
+            buf.putInt(i * 4, block.getPointID(i));
+
+            int offset = recordsStart + i * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+            buf.putDouble(offset, block.getMz(i));
+            buf.putFloat(offset + 8, block.getRt(i));
+            buf.putDouble(offset + 12, block.getIntensity(i));
+            buf.putInt(offset + 20, block.getMeta1(i));
+        }
+
+        this.blocks.put(nodeID, buf);
+    }
+
+    /**
+     * Decodes a node block held in direct memory and drops it from the tier,
+     * the caller promotes it back to the heap
+     * @param nodeID ID of the block's node
+     * @return the node's points, or null if the block is not held
+     */
+    PointStore take(int nodeID)
+    {
+        ByteBuffer buf = this.blocks.get(nodeID);
+        if (buf == null)
+            return null;
+        this.blocks.remove(nodeID);
+
+        // absolute gets only, concurrent decodes of a block are safe
+        int n = buf.capacity() / NUM_BYTES_PER_POINT;
+        int recordsStart = n * 4;
+        PointStore block = new PointStore(n);
+        for (int i = 0; i < n; i++)
+        {
+            int offset = recordsStart + i * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+            block.add(buf.getInt(i * 4), buf.getDouble(offset), buf.getFloat(offset + 8),
+                    buf.getDouble(offset + 12), buf.getInt(offset + 20));
+        }
+        return block;
+    }
+
+    /**
+     * Drops every block, their direct memory is released once collected
+     */
+    void clear()
+    {
+        this.blocks.clear();
+    }
+
+    LruCache<Integer, ByteBuffer> getBlocks()
+    {
+        return this.blocks;
+    }
+}
@@ -6,172 +6,185 @@
 package edu.msViz.mzTree;
 
 import edu.msViz.mzTree.storage.StorageFacade;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Encapsulates a pointID -> MsDataPoint map, augmenting with data storage interaction
+ * Caches the points of MzTreeNodes a node block at a time: the full, decoded
+ * point set of a node keyed by its nodeID, augmenting with data storage interaction.
+ * Blocks are evicted least recently used first under a byte budget. If an off-heap
+ * budget is configured, evicted blocks are demoted to an OffHeapBlockCache rather than dropped.
  * @author kyle
  */
-public class PointCache 
+public class PointCache
 {
     private static final Logger LOGGER = Logger.getLogger(PointCache.class.getName());
-    
-    // cache containing msDataPoints keyed by their IDs
-    private Map<Integer,MsDataPoint> cache = new ConcurrentHashMap<>();
-    
-    // limit on the number of entries allowed in the cache
-    // estimated according to the java heap size
-    private final long sizeLimit;
-    
+
+    // system property holding the cache's memory budget in bytes
+    public static final String BUDGET_PROPERTY = "msViz.pointCacheBytes";
+
+    // fraction of the heap budgeted when the property is not set
+    // a warm cache stays full, so it must leave room for query results and builds
+    private static final float DEFAULT_HEAP_FRACTION = .25f;
+
+    // number of bytes required to cache a block beyond its points
+    // PointStore and its five arrays, Integer key, map entry
+    private static final int MEM_NUM_BYTES_PER_BLOCK = 200;
+
+    // cached node blocks keyed by nodeID
+    private final LruCache<Integer, PointStore> blocks;
+
+    // second tier receiving blocks evicted from the heap, null if disabled
+    private final OffHeapBlockCache offHeap;
+
     // StorageFacade object initialized by the mzTree
     private StorageFacade dataStorage;
 
+    // whether summary blocks are sorted by rank as they are loaded, see setRankOrdered
+    private volatile boolean rankOrdered;
+
     /**
-     * Default constructor accepting data storage implementation
+     * Default constructor accepting data storage implementation, budgets the
+     * number of bytes in the BUDGET_PROPERTY system property or else a fraction of the heap,
+     * and the number of off-heap bytes in the OffHeapBlockCache.BUDGET_PROPERTY system property
      * @param dataStorage data storage implementation
      */
     public PointCache(StorageFacade dataStorage)
     {
-        // keep reference to data storage
-        this.dataStorage = dataStorage;
-        
-        // cap to 80% of heap
-        float allowedRamPercentage = (float).8;
-        
-        // bytes in heap allowed for point cache
-        long numAllowedBytes = (long)(Runtime.getRuntime().maxMemory() * allowedRamPercentage);
-        
-        // sizeLimit = Heap Size * percentage / bytes per point
-        this.sizeLimit = numAllowedBytes / MsDataPoint.MEM_NUM_BYTES_PER_POINT;
-        
+        this(dataStorage, Long.getLong(BUDGET_PROPERTY, (long)(Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION)),
+                Long.getLong(OffHeapBlockCache.BUDGET_PROPERTY, 0));
     }
-    
+
     /**
-     * Retrieves the points referenced by pointIDs. First, the cache is queried
-     * for any containing points. If the cache does not contain a requested point
-     * the database is queried for the point.
-     * @param pointIDs
-     * @return 
+     * Constructor accepting data storage implementation and memory budget, without off-heap tier
+     * @param dataStorage data storage implementation
+     * @param numAllowedBytes bytes in heap allowed for point cache
      */
-    public ArrayList<MsDataPoint> retrievePoints(List<Integer> pointIDs)
+    public PointCache(StorageFacade dataStorage, long numAllowedBytes)
     {
-        // points found in cache
-        ArrayList<MsDataPoint> points = new ArrayList<>();
-        
-        // points that cache missed
-        ArrayList<Integer> missedPoints = new ArrayList<>();
-        
-        // separate incoming IDs into hits/misses
-        for(int pointID : pointIDs){
-            MsDataPoint point;
-            if((point = this.cache.get(pointID)) != null)
-                points.add(point);
-            else
-                missedPoints.add(pointID);
-        }
-        
-        // make room in the cache for the missed points
-        this.makeRoom(missedPoints.size());
-        
-        // load points from storage if any to load
-        if(missedPoints.size() > 0){
-            
-            List<MsDataPoint> loadedPoints = null;
-            
-            try{
-                loadedPoints = this.dataStorage.loadPoints(missedPoints);
-            }
-            catch(Exception ex){
-                LOGGER.log(Level.WARNING, "Unable to load points from database", ex);
-            }
-
-            if(loadedPoints != null) 
-            {
-                // cache the loaded points
-                this.putAll(loadedPoints);
-
-                // unify point lists and return
-                points.addAll(loadedPoints);
-            }
-        }
-        return points;
+        this(dataStorage, numAllowedBytes, 0);
     }
-    
+
     /**
-     * Makes sure there is room in the cache for n more points
-     * @param n 
+     * Constructor accepting data storage implementation and memory budgets
+     * @param dataStorage data storage implementation
+     * @param numAllowedBytes bytes in heap allowed for point cache
+     * @param numAllowedOffHeapBytes bytes of direct memory allowed for the off-heap tier, 0 to disable it
      */
-    private void makeRoom(int n)
+    public PointCache(StorageFacade dataStorage, long numAllowedBytes, long numAllowedOffHeapBytes)
     {
-        // the simple, brute force tactic for now
-        // if cache.size() + n > sizeLimit -> clear the cache
-        if(this.cache.size() + n > sizeLimit)
-            this.cache.clear();
+        // keep reference to data storage
+        this.dataStorage = dataStorage;
+
+        this.blocks = new LruCache<>(numAllowedBytes, PointCache::blockBytes);
+
+        if (numAllowedOffHeapBytes > 0)
+        {
+            this.offHeap = new OffHeapBlockCache(numAllowedOffHeapBytes);
+            this.blocks.setEvictionListener((nodeID, block) -> this.offHeap.put(nodeID, block));
+        }
+        else
+            this.offHeap = null;
     }
-    
+
     /**
-     * Clears the pointCache
+     * Retrieves all of the points of a node. The cache is queried for the node's
+     * block, then the off-heap tier, and if neither holds it the block is loaded
+     * from storage. The block is then cached in heap, leaving the off-heap tier.
+     * The returned store is shared and must not be modified.
+     * @param node node whose pointIDs have been loaded
+     * @return the node's points, empty if they could not be loaded
      */
-    public void clear() {
-        this.cache.clear();
+    public PointStore retrieveNodePoints(MzTreeNode node)
+    {
+        PointStore block = this.blocks.get(node.nodeID);
+        if (block != null)
+            return block;
+
+        if (this.offHeap != null)
+            block = this.offHeap.take(node.nodeID);
+        if (block == null)
+            block = this.loadBlock(node);
+        if (block != null)
+            this.blocks.put(node.nodeID, block);
+        return (block != null) ? block : new PointStore();
     }
-    
+
     /**
-     * retrieves a single point from the point cache, retrieving from storage
-     * if the point is not currently cached
-     * @param pointID ID of point to retrieve
-     * @return specified point
-     */ 
-    public MsDataPoint get(int pointID)
+     * Caches a node's block and exempts it from eviction until the cache is cleared
+     * At most half of the budget may be pinned, blocks beyond that are cached normally
+     * @param node node whose pointIDs have been loaded
+     */
+    public void pin(MzTreeNode node)
     {
-        MsDataPoint point;
-        
-        // attempt to retrieve MsDataPoint from cache
-        if( (point = this.cache.get(pointID)) == null)
-        {
-            // null point means not in cache, load from db
-            try{
-                ArrayList<Integer> pointIDWrapper = new ArrayList<>();
-                pointIDWrapper.add(pointID);
-                this.makeRoom(1);
-                point = this.dataStorage.loadPoints( pointIDWrapper ).get(0);
-            }
-            catch (Exception ex){
-                LOGGER.log(Level.WARNING, "Could not load point " + pointID + " from storage", ex);
-            }
-        }
-        
-        return point;
+        PointStore block = this.blocks.get(node.nodeID);
+        if (block == null)
+            block = this.loadBlock(node);
+        if (block != null)
+            this.blocks.pin(node.nodeID, block);
     }
-    
+
     /**
-     * Inserts a point into the point cache
-     * @param point 
+     * Sets whether blocks are put in descending rank order (see PointRank) as they are loaded.
+     * A rank ordered tree stores its leaves in rank order but its summaries in pointID order,
+     * so only summary blocks are sorted. Clears the cache, whose blocks may be in the other order
+     * @param rankOrdered true to sort summary blocks by rank
      */
-    public void put(MsDataPoint point){
-        this.cache.put(point.pointID, point);
+    public void setRankOrdered(boolean rankOrdered) {
+        this.rankOrdered = rankOrdered;
+        this.clear();
     }
-    
+
     /**
-     * Inserts a list of points into the point cache
-     * @param points points to insert into cache
+     * Clears the pointCache, including pinned blocks and the off-heap tier
      */
-    public void putAll(List<MsDataPoint> points){
-        for(MsDataPoint point : points)
-            this.cache.put(point.pointID, point);
+    public void clear() {
+        this.blocks.clear();
+        if (this.offHeap != null)
+            this.offHeap.clear();
     }
-    
+
     /**
      * Returns the size of the point cache
-     * @return Size of the cache
+     * @return number of cached node blocks
      */
     public int size(){
-        return this.cache.size();
+        return this.blocks.size();
+    }
+
+    /**
+     * @return the underlying block cache, for its statistics
+     */
+    public LruCache<Integer, PointStore> getBlocks() {
+        return this.blocks;
+    }
+
+    /**
+     * @return the off-heap tier's block cache, for its statistics, null if the tier is disabled
+     */
+    public LruCache<Integer, ?> getOffHeapBlocks() {
+        return (this.offHeap != null) ? this.offHeap.getBlocks() : null;
+    }
+
+    /* Loads a node's block from storage, null on failure */
+    private PointStore loadBlock(MzTreeNode node)
+    {
+        try{
+            PointStore block = this.dataStorage.loadNodePoints(node);
+            if (this.rankOrdered && node.fileIndex == null)
+                block.sortByRank(0, block.size());
+            block.trimToSize();
+            return block;
+        }
+        catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Unable to load points of node " + node.nodeID + " from storage", ex);
+            return null;
+        }
+    }
+
+    /* Heap bytes of a cached block */
+    private static long blockBytes(PointStore block)
+    {
+        return (long) block.capacity() * PointStore.MEM_NUM_BYTES_PER_POINT + MEM_NUM_BYTES_PER_BLOCK;
     }
-    
 }
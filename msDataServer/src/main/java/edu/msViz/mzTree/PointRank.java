@@ -0,0 +1,58 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+/**
+ * Deterministic weighted random rank of a point, the key of algorithm A-Res
+ * (see https://en.wikipedia.org/wiki/Reservoir_sampling#Algorithm_A-Res)
+ * with the random number drawn from a hash of the point's coordinates.
+ *
+ * The points of any set with the highest keys are a random sample of the set weighted
+ * by intensity. Since a point's key never changes, the first k points of a merge of
+ * rank ordered node blocks are the sample of the union of the blocks.
+ */
+final class PointRank
+{
+    private PointRank() {}
+
+    /**
+     * Computes the rank key of a point, higher keys rank first
+     * @param mz point's mz value
+     * @param rt point's rt value
+     * @param intensity point's intensity value, the weight of the point
+     * @return ln(u) / intensity for u uniform in (0, 1), negative infinity if intensity is not positive
+     */
+    static double key(double mz, float rt, double intensity)
+    {
+        if (!(intensity > 0))
+            return Double.NEGATIVE_INFINITY;
+
+        long hash = mix(Double.doubleToLongBits(mz) ^ mix(Float.floatToIntBits(rt)));
+
+        // 53 random bits, centered in their interval so that u is never 0 or 1
+        double u = ((hash >>> 11) + 0.5) * 0x1.0p-53;
+        return Math.log(u) / intensity;
+    }
+
+    /**
+     * Rank key of a point of a store
+     * @param points store holding the point
+     * @param i index of the point
+     * @return the point's rank key
+     */
+    static double key(PointStore points, int i)
+    {
+        return key(points.getMz(i), points.getRt(i), points.getIntensity(i));
+    }
+
+    /* splitmix64 finalizer */
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
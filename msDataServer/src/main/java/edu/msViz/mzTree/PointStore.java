@@ -0,0 +1,460 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Growable struct-of-arrays collection of MS data points. Each point is a
+ * position in parallel primitive arrays rather than an object, so large
+ * collections cost a fraction of the heap of MsDataPoint lists and scans
+ * over a single column stay sequential in memory.
+ */
+public class PointStore
+{
+    // number of bytes required to hold a point in main memory
+    // pointID: 4 bytes
+    // mz: 8 bytes
+    // rt: 4 bytes
+    // intensity: 8 bytes
+    // meta1: 4 bytes
+    // total = 4 + 8 + 4 + 8 + 4 = 28
+    public static final int MEM_NUM_BYTES_PER_POINT = 28;
+
+    // number of bytes required per point while building a tree from a store:
+    // the resident columns plus the transient arrays of sortByRt/sortByMz
+    // (sort keys 8 bytes + permutation 4 bytes + merge buffer 4 bytes = 16,
+    // the permutation is then applied in place)
+    public static final int BUILD_NUM_BYTES_PER_POINT = MEM_NUM_BYTES_PER_POINT + 16;
+
+    // below this length merge sort falls back to insertion sort
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    // from this length the halves of a merge sort are sorted concurrently
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+    // point columns, valid up to size
+    private int[] pointID;
+    private double[] mz;
+    private float[] rt;
+    private double[] intensity;
+    private int[] meta1;
+
+    // number of points in the store
+    private int size;
+
+    /**
+     * Constructs an empty store with a default initial capacity
+     */
+    public PointStore()
+    {
+        this(16);
+    }
+
+    /**
+     * Constructs an empty store
+     * @param capacity number of points to allocate space for
+     */
+    public PointStore(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+        this.pointID = new int[capacity];
+        this.mz = new double[capacity];
+        this.rt = new float[capacity];
+        this.intensity = new double[capacity];
+        this.meta1 = new int[capacity];
+    }
+
+    //***********************************************//
+    //                    ACCESS                     //
+    //***********************************************//
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return number of points the store can hold without reallocating
+     */
+    public int capacity() {
+        return this.pointID.length;
+    }
+
+    public int getPointID(int i) {
+        return this.pointID[i];
+    }
+
+    public void setPointID(int i, int pointID) {
+        this.pointID[i] = pointID;
+    }
+
+    public double getMz(int i) {
+        return this.mz[i];
+    }
+
+    public float getRt(int i) {
+        return this.rt[i];
+    }
+
+    public double getIntensity(int i) {
+        return this.intensity[i];
+    }
+
+    public int getMeta1(int i) {
+        return this.meta1[i];
+    }
+
+    /**
+     * Checks if the point at index i is within the bounds of the query
+     * @param i index of point to check
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @return true if the point is within query bounds, false otherwise
+     */
+    public boolean isInBounds(int i, double mzMin, double mzMax, float rtMin, float rtMax) {
+        return (this.mz[i] <= mzMax && this.mz[i] >= mzMin
+                && this.rt[i] <= rtMax && this.rt[i] >= rtMin);
+    }
+
+    /**
+     * Checks if the point at index i is within the bounds of the query, intensity included
+     * @param i index of point to check
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param intMin query intensity lower bound
+     * @param intMax query intensity upper bound
+     * @return true if the point is within query bounds, false otherwise
+     */
+    public boolean isInBounds(int i, double mzMin, double mzMax, float rtMin, float rtMax, double intMin, double intMax) {
+        return (this.isInBounds(i, mzMin, mzMax, rtMin, rtMax)
+                && this.intensity[i] <= intMax && this.intensity[i] >= intMin);
+    }
+
+    /**
+     * Materializes the point at index i as an MsDataPoint
+     * @param i index of point
+     * @return new MsDataPoint holding the point's values
+     */
+    public MsDataPoint get(int i)
+    {
+        MsDataPoint point = new MsDataPoint(this.pointID[i], this.mz[i], this.rt[i], this.intensity[i]);
+        point.meta1 = this.meta1[i];
+        return point;
+    }
+
+    /**
+     * Materializes every point in the store as an MsDataPoint
+     * @return list of MsDataPoints in store order
+     */
+    public List<MsDataPoint> toPoints()
+    {
+        List<MsDataPoint> points = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++)
+            points.add(this.get(i));
+        return points;
+    }
+
+    //***********************************************//
+    //                    APPEND                     //
+    //***********************************************//
+
+    /**
+     * Appends a point to the store
+     * @return index of the appended point
+     */
+    public int add(int pointID, double mz, float rt, double intensity, int meta1)
+    {
+        if (this.size == this.pointID.length)
+            this.grow(this.size + 1);
+
+        int i = this.size++;
+        this.pointID[i] = pointID;
+        this.mz[i] = mz;
+        this.rt[i] = rt;
+        this.intensity[i] = intensity;
+        this.meta1[i] = meta1;
+        return i;
+    }
+
+    /**
+     * Appends a copy of a point of another store
+     * @param source store holding the point
+     * @param i index of the point in source
+     * @return index of the appended point
+     */
+    public int add(PointStore source, int i)
+    {
+        return this.add(source.pointID[i], source.mz[i], source.rt[i], source.intensity[i], source.meta1[i]);
+    }
+
+    /**
+     * Appends copies of all of the points of another store
+     * @param source store holding the points
+     */
+    public void addAll(PointStore source)
+    {
+        if (this.size + source.size > this.pointID.length)
+            this.grow(this.size + source.size);
+        System.arraycopy(source.pointID, 0, this.pointID, this.size, source.size);
+        System.arraycopy(source.mz, 0, this.mz, this.size, source.size);
+        System.arraycopy(source.rt, 0, this.rt, this.size, source.size);
+        System.arraycopy(source.intensity, 0, this.intensity, this.size, source.size);
+        System.arraycopy(source.meta1, 0, this.meta1, this.size, source.size);
+        this.size += source.size;
+    }
+
+    /**
+     * Copies the points at the given indices into a new store
+     * @param indices indices of points to copy, in the order to copy them
+     * @return new store holding the selected points
+     */
+    public PointStore subset(int[] indices)
+    {
+        PointStore subset = new PointStore(indices.length);
+        for (int i : indices)
+            subset.add(this, i);
+        return subset;
+    }
+
+    /**
+     * Ensures the store can hold capacity points without reallocating,
+     * allocating exactly capacity if it cannot
+     * @param capacity number of points
+     */
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity > this.pointID.length)
+            this.resize(capacity);
+    }
+
+    /**
+     * Releases unused capacity
+     */
+    public void trimToSize()
+    {
+        if (this.size < this.pointID.length)
+            this.resize(this.size);
+    }
+
+    /**
+     * Removes all points, keeping the allocated capacity
+     */
+    public void clear()
+    {
+        this.size = 0;
+    }
+
+    /* Grows capacity by half again, or to minCapacity if that is larger */
+    private void grow(int minCapacity)
+    {
+        int newCapacity = this.pointID.length + (this.pointID.length >> 1);
+        if (newCapacity < minCapacity || newCapacity < 0)
+            newCapacity = minCapacity;
+        this.resize(newCapacity);
+    }
+
+    private void resize(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+        this.pointID = Arrays.copyOf(this.pointID, capacity);
+        this.mz = Arrays.copyOf(this.mz, capacity);
+        this.rt = Arrays.copyOf(this.rt, capacity);
+        this.intensity = Arrays.copyOf(this.intensity, capacity);
+        this.meta1 = Arrays.copyOf(this.meta1, capacity);
+    }
+
+    //***********************************************//
+    //                     SORT                      //
+    //***********************************************//
+
+    /**
+     * Stable sort of the points in [from, to) by rt
+     */
+    public void sortByRt(int from, int to)
+    {
+        double[] keys = new double[to - from];
+        for (int i = from; i < to; i++)
+            keys[i - from] = this.rt[i];
+        this.permute(from, argsort(keys));
+    }
+
+    /**
+     * Stable sort of the points in [from, to) by mz
+     */
+    public void sortByMz(int from, int to)
+    {
+        this.permute(from, argsort(Arrays.copyOfRange(this.mz, from, to)));
+    }
+
+    /**
+     * Stable sort of the points in [from, to) by descending rank key, see PointRank
+     */
+    public void sortByRank(int from, int to)
+    {
+        double[] keys = new double[to - from];
+        for (int i = from; i < to; i++)
+            keys[i - from] = -PointRank.key(this, i);
+        this.permute(from, argsort(keys));
+    }
+
+    /**
+     * Rearranges the points starting at from so that position from + i
+     * receives the point previously at from + order[i]
+     * The points are moved along the cycles of the permutation, which needs no
+     * scratch arrays; order is consumed, its visited entries are complemented
+     */
+    private void permute(int from, int[] order)
+    {
+        for (int start = 0; start < order.length; start++)
+        {
+            if (order[start] < 0)
+                continue;
+
+            // lift out the point at the start of the cycle, its position is filled first
+            int cycleID = this.pointID[from + start];
+            double cycleMz = this.mz[from + start];
+            float cycleRt = this.rt[from + start];
+            double cycleIntensity = this.intensity[from + start];
+            int cycleMeta1 = this.meta1[from + start];
+
+            int dst = start;
+            int src = order[dst];
+            while (src != start)
+            {
+                order[dst] = ~src;
+                this.pointID[from + dst] = this.pointID[from + src];
+                this.mz[from + dst] = this.mz[from + src];
+                this.rt[from + dst] = this.rt[from + src];
+                this.intensity[from + dst] = this.intensity[from + src];
+                this.meta1[from + dst] = this.meta1[from + src];
+                dst = src;
+                src = order[dst];
+            }
+
+            // the last position of the cycle receives the lifted point
+            order[dst] = ~src;
+            this.pointID[from + dst] = cycleID;
+            this.mz[from + dst] = cycleMz;
+            this.rt[from + dst] = cycleRt;
+            this.intensity[from + dst] = cycleIntensity;
+            this.meta1[from + dst] = cycleMeta1;
+        }
+    }
+
+    /**
+     * Computes the permutation that stably sorts keys in ascending order.
+     * Long inputs are sorted in parallel, in the fork/join pool of the calling task
+     * or else the common pool.
+     * @param keys sort keys
+     * @return indices into keys, in ascending key order (ties keep index order)
+     */
+    public static int[] argsort(double[] keys)
+    {
+        int[] order = new int[keys.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+
+        new MergeSortTask(keys, order, new int[order.length], 0, order.length).invoke();
+        return order;
+    }
+
+    /**
+     * Merge sort of order[lo, hi) by keys whose halves are sorted concurrently,
+     * splitting exactly as mergeSort does so the result is the same
+     */
+    private static class MergeSortTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] keys;
+        private final int[] order;
+        private final int[] buffer;
+        private final int lo;
+        private final int hi;
+
+        MergeSortTask(double[] keys, int[] order, int[] buffer, int lo, int hi)
+        {
+            this.keys = keys;
+            this.order = order;
+            this.buffer = buffer;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (this.hi - this.lo < PARALLEL_SORT_THRESHOLD) {
+                mergeSort(this.keys, this.order, this.buffer, this.lo, this.hi);
+                return;
+            }
+
+            int mid = (this.lo + this.hi) >>> 1;
+            invokeAll(new MergeSortTask(this.keys, this.order, this.buffer, this.lo, mid),
+                    new MergeSortTask(this.keys, this.order, this.buffer, mid, this.hi));
+            merge(this.keys, this.order, this.buffer, this.lo, mid, this.hi);
+        }
+    }
+
+    /* Top-down merge sort of order[lo, hi) by keys, using buffer as scratch */
+    private static void mergeSort(double[] keys, int[] order, int[] buffer, int lo, int hi)
+    {
+        if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(keys, order, lo, hi);
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        mergeSort(keys, order, buffer, lo, mid);
+        mergeSort(keys, order, buffer, mid, hi);
+        merge(keys, order, buffer, lo, mid, hi);
+    }
+
+    /* Merges the sorted runs order[lo, mid) and order[mid, hi) */
+    private static void merge(double[] keys, int[] order, int[] buffer, int lo, int mid, int hi)
+    {
+        // already in order
+        if (keys[order[mid - 1]] <= keys[order[mid]])
+            return;
+
+        System.arraycopy(order, lo, buffer, lo, hi - lo);
+        int left = lo, right = mid;
+        for (int i = lo; i < hi; i++)
+        {
+            // take from the left run on ties for stability
+            if (right >= hi || (left < mid && keys[buffer[left]] <= keys[buffer[right]]))
+                order[i] = buffer[left++];
+            else
+                order[i] = buffer[right++];
+        }
+    }
+
+    private static void insertionSort(double[] keys, int[] order, int lo, int hi)
+    {
+        for (int i = lo + 1; i < hi; i++)
+        {
+            int cur = order[i];
+            double key = keys[cur];
+            int j = i - 1;
+            while (j >= lo && keys[order[j]] > key) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = cur;
+        }
+    }
+}
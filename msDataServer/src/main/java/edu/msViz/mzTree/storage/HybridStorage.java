@@ -8,21 +8,24 @@ package edu.msViz.mzTree.storage;
 import edu.msViz.mzTree.ImportState;
 import edu.msViz.mzTree.MsDataPoint;
 import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointStore;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
 
 /**
@@ -42,12 +45,26 @@ public class HybridStorage implements StorageFacade
     // point value access
     private PointEngine pointEngine;
     
+    // point file read strategies
+    private enum PointReadMode {
+        MAPPED,         // decode from a memory mapping of the point file
+        POSITIONAL      // FileChannel positional reads, no shared file cursor
+    }
+    
+    // static point read mode choice
+    // MAPPED falls back to POSITIONAL for any part of the file that cannot be mapped
+    private static final PointReadMode POINT_READ_MODE = PointReadMode.MAPPED;
+    
     // path to the database and point files
     private String filePath;
     private String pointFilePath;
     
+    // Property table entry recording that node points are stored in rank order
+    private static final String POINT_ORDER_PROPERTY = "pointOrder";
+    private static final String POINT_ORDER_RANK = "rank";
+    
     // work done counter (number of points || nodepoints saved)
-    private int workDone = 0;
+    private final AtomicInteger workDone = new AtomicInteger();
     
     //**********************************************//
     //                    INIT                      //
@@ -84,9 +101,10 @@ public class HybridStorage implements StorageFacade
             
             // construct SQL Engine and Point Engine
             this.dbEngine = new SQLEngine();
-            this.pointEngine = new PointEngine(pointFilePath);
+            this.pointEngine = new PointEngine(pointFilePath, POINT_READ_MODE);
             
             // reserve space for the number of incoming points
+            // (released on flush if fewer points are inserted)
             if(numPoints != null)
                 this.pointEngine.reserveSpace(numPoints);
             
@@ -125,6 +143,11 @@ public class HybridStorage implements StorageFacade
     public List<MzTreeNode> loadChildNodes(MzTreeNode parent) throws Exception {
         return this.dbEngine.selectNode(parent.nodeID, true);
     }
+
+    @Override
+    public Map<Integer, List<MzTreeNode>> loadNodesByParent() throws Exception {
+        return this.dbEngine.selectAllNodesByParent();
+    }
     
     //**********************************************//
     //                  SAVE POINTS                 //
@@ -135,20 +158,12 @@ public class HybridStorage implements StorageFacade
     {   
         
         // inform the MzTreeNode of its position in the file and number of points
-        task.node.fileIndex = this.pointEngine.getCurrentFileLocation();
-        task.node.numSavedPoints = task.dataset.size();
+        // (written as one block at the position of its first pointID)
+        task.node.fileIndex = this.pointEngine.writeAll(task.dataset, task.from, task.to);
+        task.node.numSavedPoints = task.to - task.from;
         
-        // iterate through all points
-        for(MsDataPoint point : task.dataset)
-        {
-            // insert point into database
-            this.pointEngine.insert(point);
-
-            // a point is a single unit of work
-            this.workDone++;
-
-            importState.setWorkDone(this.workDone);
-        }
+        // a point is a single unit of work, progress is reported once per block
+        importState.setWorkDone(this.workDone.addAndGet(task.to - task.from));
     }
 
     @Override
@@ -157,7 +172,7 @@ public class HybridStorage implements StorageFacade
     }
 
     @Override
-    public ArrayList<Integer> getNodePointIDs(int nodeID) throws Exception {
+    public int[] getNodePointIDs(int nodeID) throws Exception {
         return this.dbEngine.selectPointIDsByNode(nodeID);
     }
     
@@ -205,29 +220,51 @@ public class HybridStorage implements StorageFacade
     public void saveNodePoints(MzTreeNode node, ImportState importState) throws SQLException
     {
         // set the node points array in DB
-        this.dbEngine.updateNodePoints(node.nodeID, node.pointIDs.stream().mapToInt(x -> x).toArray());
+        this.dbEngine.updateNodePoints(node.nodeID, node.pointIDs);
         
         // node points are not significant work done
     }
     
+    //**********************************************//
+    //                 POINT ORDER                  //
+    //**********************************************//
+    
+    @Override
+    public boolean isRankOrdered() throws SQLException
+    {
+        return POINT_ORDER_RANK.equals(this.dbEngine.selectProperty(POINT_ORDER_PROPERTY));
+    }
+    
+    @Override
+    public void setRankOrdered() throws SQLException
+    {
+        this.dbEngine.replaceProperty(POINT_ORDER_PROPERTY, POINT_ORDER_RANK);
+    }
+    
     //**********************************************//
     //                  LOAD POINTS                 //
     //**********************************************//
     
     @Override
-    public List<MsDataPoint> loadPoints(List<Integer> pointIDs) throws IOException
+    public PointStore loadPoints(int[] pointIDs) throws IOException
     {
         return this.pointEngine.selectPoints(pointIDs);
     }
     
     @Override
-    public List<MsDataPoint> loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax) throws IOException
+    public PointStore loadNodePoints(MzTreeNode node) throws IOException
+    {
+        return this.pointEngine.selectNodePoints(node);
+    }
+    
+    @Override
+    public PointStore loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax, double intmin, double intmax) throws IOException
     {
-        List<MsDataPoint> results = new ArrayList<>();
+        PointStore results = new PointStore();
         
         for(MzTreeNode leaf : leaves)
         {
-            results.addAll(this.pointEngine.selectLeafPointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax));
+            this.pointEngine.selectLeafPointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax, intmin, intmax, results);
         }
         
         return results;
@@ -290,7 +327,7 @@ public class HybridStorage implements StorageFacade
     private class SQLEngine{
         
         private static final int APPLICATION_ID = 223764262;
-        private static final int USER_VERSION = 5;
+        private static final int USER_VERSION = 7;
         
         // SQL statement for retrieiving root node
         public final String selectRootNodeStatement = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points FROM Node WHERE parentId IS NULL;";
@@ -299,6 +336,7 @@ public class HybridStorage implements StorageFacade
         public final String[] orderedCreateTableStatements = {
             "CREATE TABLE IF NOT EXISTS Node (nodeId INTEGER PRIMARY KEY, fileIndex INTEGER, numPoints INTEGER, mzMin DOUBLE NOT NULL, mzMax DOUBLE NOT NULL, rtMin FLOAT NOT NULL, rtMax FLOAT NOT NULL, intMin DOUBLE, intMax DOUBLE, parentId INTEGER, points BLOB, FOREIGN KEY(parentId) REFERENCES Node(nodeId));",
             "CREATE INDEX IF NOT EXISTS Node_parentId ON Node (parentId);",
+            "CREATE TABLE IF NOT EXISTS Property (name TEXT PRIMARY KEY, value TEXT);",
         };
         
         // insert statements 
@@ -309,13 +347,22 @@ public class HybridStorage implements StorageFacade
         private final String selectNodeByParentSQL = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points FROM Node WHERE parentId=?;";
         private final String selectNodeByIdSQL = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points FROM Node WHERE nodeId=?;";
         
+        // full scan of the node table, excluding the (lazily loaded) points column
+        private final String selectAllNodesSQL = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId FROM Node;";
+        
         // update statements
         private final PreparedStatement updateNodePointsStatement;
         
+        // property statements
+        private final String selectPropertySQL = "SELECT value FROM Property WHERE name=?;";
+        private final String replacePropertySQL = "INSERT OR REPLACE INTO Property (name, value) VALUES (?,?);";
+        
         /**
          * Default constructor
          * Ensures that tables exist within database and creates prepared statements
          */
+        // the version upgrades fall through from one migration to the next
+        @SuppressWarnings("fallthrough")
         public SQLEngine() throws Exception
         {
             int appId;
@@ -374,9 +421,11 @@ public class HybridStorage implements StorageFacade
                 // commented-out examples below
                 switch(userVersion) {
                     case 5:
-                        //convert_v5_v6();
+                        convert_v5_v6();
                     case 6:
-                        //convert_v6_v7();
+                        convert_v6_v7();
+                    case 7:
+                        //convert_v7_v8();
                         break;
                     default:
                         throw new SQLException("Unsupported mzTree file version.");
@@ -386,6 +435,15 @@ public class HybridStorage implements StorageFacade
                     updateUserVersionStatement.execute("PRAGMA user_version = " + USER_VERSION + ";");
                 }
 
+                dbConnection.commit();
+
+                // reclaim the space freed by the conversion (VACUUM cannot run inside a transaction)
+                dbConnection.setAutoCommit(true);
+                try(Statement vacuumStatement = dbConnection.createStatement()) {
+                    vacuumStatement.execute("VACUUM;");
+                }
+                dbConnection.setAutoCommit(false);
+
                 LOGGER.log(Level.INFO, "mzTree file converted to version " + USER_VERSION);
             }
           
@@ -396,6 +454,43 @@ public class HybridStorage implements StorageFacade
             this.updateNodePointsStatement = dbConnection.prepareStatement("UPDATE Node SET points=? WHERE nodeId=?");
         }
 
+        /**
+         * Version 6 stores Node.points with PointIDCodec instead of raw big-endian ints
+         * @throws SQLException 
+         */
+        private void convert_v5_v6() throws SQLException
+        {
+            try(Statement selectPointsStatement = dbConnection.createStatement();
+                PreparedStatement updatePointsStatement = dbConnection.prepareStatement("UPDATE Node SET points=? WHERE nodeId=?"))
+            {
+                ResultSet results = selectPointsStatement.executeQuery("SELECT nodeId, points FROM Node WHERE points IS NOT NULL;");
+                while(results.next())
+                {
+                    // version 5 blob: big-endian 4-byte ints
+                    byte[] bytes = results.getBytes(2);
+                    int[] pointIDs = new int[bytes.length / 4];
+                    ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(pointIDs);
+                    
+                    updatePointsStatement.setBytes(1, PointIDCodec.encode(pointIDs));
+                    updatePointsStatement.setInt(2, results.getInt(1));
+                    updatePointsStatement.executeUpdate();
+                }
+            }
+        }
+
+        /**
+         * Version 7 adds the Property table. A converted file has no properties,
+         * in particular its node points are not in rank order
+         * @throws SQLException 
+         */
+        private void convert_v6_v7() throws SQLException
+        {
+            try(Statement createStatement = dbConnection.createStatement())
+            {
+                createStatement.execute("CREATE TABLE IF NOT EXISTS Property (name TEXT PRIMARY KEY, value TEXT);");
+            }
+        }
+
         /**
          * Inserts an MzTreeNode into the database
          * @param node MzTreeNode to insert
@@ -455,14 +550,8 @@ public class HybridStorage implements StorageFacade
          */
         public void updateNodePoints(int nodeID, int[] pointIDs) throws SQLException
         {
-            // convert pointIDs into a byte array
-            ByteBuffer bytes = ByteBuffer.allocate(pointIDs.length * 4).order(ByteOrder.BIG_ENDIAN);
-            IntBuffer wrapper = bytes.asIntBuffer();
-            wrapper.put(pointIDs);
-            bytes.rewind();
-            
-            // update the Node.points field in the database
-            this.updateNodePointsStatement.setBytes(1, bytes.array());
+            // update the Node.points field in the database, compactly encoded
+            this.updateNodePointsStatement.setBytes(1, PointIDCodec.encode(pointIDs));
             this.updateNodePointsStatement.setInt(2, nodeID);
             this.updateNodePointsStatement.executeUpdate();
         }
@@ -511,12 +600,72 @@ public class HybridStorage implements StorageFacade
             return nodes;
         }
         
+        /**
+         * Reads the whole NODE table in one sequential scan
+         * @return nodes grouped by parentId, the root node (null parentId) is keyed by 0
+         */
+        public Map<Integer, List<MzTreeNode>> selectAllNodesByParent() throws SQLException
+        {
+            Map<Integer, List<MzTreeNode>> nodesByParent = new HashMap<>();
+            
+            try(Statement selectAllNodesStatement = dbConnection.createStatement())
+            {
+                ResultSet results = selectAllNodesStatement.executeQuery(this.selectAllNodesSQL);
+                while(results.next())
+                {
+                    // create new node and assign values
+                    MzTreeNode node = new MzTreeNode();
+                    HybridStorage.this.assignNodeValues(node, results);
+                    
+                    // null parent ID is reported by jdbc as 0, which is the root's key
+                    int parentID = results.getInt(10);
+                    
+                    // collect node under its parent
+                    nodesByParent.computeIfAbsent(parentID, k -> new ArrayList<>()).add(node);
+                }
+            }
+            
+            return nodesByParent;
+        }
+        
+        /**
+         * Queries for the value of a property of the file
+         * @param name property name
+         * @return the property's value, null if the property is not set
+         * @throws SQLException 
+         */
+        public String selectProperty(String name) throws SQLException
+        {
+            try(PreparedStatement selectPropertyStatement = dbConnection.prepareStatement(this.selectPropertySQL))
+            {
+                selectPropertyStatement.setString(1, name);
+                ResultSet results = selectPropertyStatement.executeQuery();
+                return results.next() ? results.getString(1) : null;
+            }
+        }
+        
+        /**
+         * Sets the value of a property of the file
+         * @param name property name
+         * @param value property value
+         * @throws SQLException 
+         */
+        public void replaceProperty(String name, String value) throws SQLException
+        {
+            try(PreparedStatement replacePropertyStatement = dbConnection.prepareStatement(this.replacePropertySQL))
+            {
+                replacePropertyStatement.setString(1, name);
+                replacePropertyStatement.setString(2, value);
+                replacePropertyStatement.executeUpdate();
+            }
+        }
+
         /**
          * Queries for pointIDs of points belonging to the node specified by nodeID
          * @param nodeID node whose points' IDs are to be collected
-         * @return List of IDs of points belonging to the specified node
+         * @return IDs of points belonging to the specified node
          */
-        public ArrayList<Integer> selectPointIDsByNode(int nodeID) throws SQLException
+        public int[] selectPointIDsByNode(int nodeID) throws SQLException, DataFormatException
         {
             try(PreparedStatement selectPointIDsByNodeStatement = dbConnection.prepareStatement(this.selectPointIDsByNodeSQL))
             {
@@ -524,22 +673,12 @@ public class HybridStorage implements StorageFacade
                 selectPointIDsByNodeStatement.setInt(1, nodeID);
                 ResultSet results = selectPointIDsByNodeStatement.executeQuery();
 
-                // transform resultset into list of pointIDs
-                ArrayList<Integer> pointIDs = new ArrayList<>();
-                if(results.next()) {
-                    // convert the byte array to an integer array
-                    byte[] bytes = results.getBytes(1);
-                    int[] ints = new int[bytes.length / 4];
-                    ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(ints);
-                    
-                    // add the IDs to the result list
-                    pointIDs.ensureCapacity(ints.length);
-                    for (int i = 0; i < ints.length; i++) {
-                        pointIDs.add(ints[i]);
-                    }
-                }
+                // decode the blob straight into the pointID array
+                byte[] bytes = results.next() ? results.getBytes(1) : null;
+                if(bytes == null)
+                    return new int[0];
 
-                return pointIDs;
+                return PointIDCodec.decode(bytes);
             }
         }
     }
@@ -558,78 +697,175 @@ public class HybridStorage implements StorageFacade
          * META1: 4 [INTEGER]
          */
         
+        // a single MappedByteBuffer is limited to 2GB, so the point file is mapped
+        // as a series of regions holding a whole number of points each
+        // 2^25 points * 24B = 768MB per region
+        private static final int POINTS_PER_REGION_SHIFT = 25;
+        private static final int POINTS_PER_REGION = 1 << POINTS_PER_REGION_SHIFT;
+        
+        // point file
         private final RandomAccessFile pointFile;
+        
+        // channel of pointFile, used for positional reads and writes
+        private final FileChannel pointChannel;
 
         // number of points in the file
-        private int pointCount;
+        // written under the engine monitor, read without it
+        private volatile int pointCount;
+        
+        // how reads are served
+        private final PointReadMode readMode;
+        
+        // read-only mappings of the point file, null if not mapped
+        // reads through the mapping use absolute gets only and require no locking
+        private volatile MappedByteBuffer[] mappedRegions;
+        
+        // number of points covered by mappedRegions
+        private volatile long numMappedPoints;
+        
+        // reusable buffer for block writes of each writing thread, grown on demand
+        private final ThreadLocal<ByteBuffer> writeBuffers = new ThreadLocal<>();
         
         /**
          * Creates or opens the point storage file
          * @throws IOException 
          */
-        public PointEngine(String pointFilePath) throws IOException {
+        public PointEngine(String pointFilePath, PointReadMode readMode) throws IOException {
             pointFile = new RandomAccessFile(pointFilePath, "rw");
+            pointChannel = pointFile.getChannel();
+            this.readMode = readMode;
             this.pointCount = 0;
             
             if (pointFile.length() > 0) {
                 // existing file
                 pointCount = (int) (pointFile.length() / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+                this.mapPointFile();
             }
             
         }
+        
+        /**
+         * Maps the current extent of the point file into memory, one region per
+         * POINTS_PER_REGION points. On failure reads fall back to positional reads.
+         */
+        private synchronized void mapPointFile()
+        {
+            if (this.readMode != PointReadMode.MAPPED)
+                return;
+            
+            try {
+                FileChannel channel = this.pointChannel;
+                long numPoints = channel.size() / MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+                int numRegions = (int) ((numPoints + POINTS_PER_REGION - 1) / POINTS_PER_REGION);
+                
+                MappedByteBuffer[] regions = new MappedByteBuffer[numRegions];
+                for (int i = 0; i < numRegions; i++) {
+                    long regionStart = (long) i * POINTS_PER_REGION;
+                    long regionPoints = Math.min(POINTS_PER_REGION, numPoints - regionStart);
+                    regions[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            regionStart * MsDataPoint.DISK_NUM_BYTES_PER_POINT,
+                            regionPoints * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+                }
+                
+                this.mappedRegions = regions;
+                this.numMappedPoints = numPoints;
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not map point file, using positional reads", e);
+                this.mappedRegions = null;
+                this.numMappedPoints = 0;
+            }
+        }
 
-        /* Converts a byte array to point data */
-        private MsDataPoint pointFromBytes(int id, byte[] data) 
+        /* Appends the point data at offset in buf to out, using absolute gets only */
+        private static void readPoint(int id, ByteBuffer buf, int offset, PointStore out)
+        {
+            double mz = buf.getDouble(offset);
+            float rt = buf.getFloat(offset + 8);
+            double intensity = buf.getDouble(offset + 12);
+            int meta1 = buf.getInt(offset + 20);
+            
+            out.add(id, mz, rt, intensity, meta1);
+        }
+        
+        /* Appends the point data at offset in buf to out if it is within the bounds,
+           the remaining fields are only decoded for points that are */
+        private static void readPointInBounds(int id, ByteBuffer buf, int offset, PointStore out,
+                double mzmin, double mzmax, float rtmin, float rtmax, double intmin, double intmax)
         {
-            ByteBuffer buf = ByteBuffer.wrap(data);
-            double mz = buf.getDouble();
-            float rt = buf.getFloat();
-            double intensity = buf.getDouble();
-            int meta1 = buf.getInt();
-            
-            MsDataPoint pt = new MsDataPoint(id, mz, rt, intensity);
-            pt.meta1 = meta1;
-            return pt;
+            double mz = buf.getDouble(offset);
+            float rt = buf.getFloat(offset + 8);
+            if (mz <= mzmax && mz >= mzmin && rt <= rtmax && rt >= rtmin)
+            {
+                double intensity = buf.getDouble(offset + 12);
+                if (intensity <= intmax && intensity >= intmin)
+                    out.add(id, mz, rt, intensity, buf.getInt(offset + 20));
+            }
         }
         
-        /* Converts point data to a byte array */
-        private byte[] pointToBytes(MsDataPoint point) {
-            ByteBuffer buf = ByteBuffer.allocate(MsDataPoint.DISK_NUM_BYTES_PER_POINT);
-            buf.putDouble(point.mz);
-            buf.putFloat(point.rt);
-            buf.putDouble(point.intensity);
-            buf.putInt(point.meta1);
-            return buf.array();
+        /* Appends the data of point i of the store at the buffer's position */
+        private static void putPoint(ByteBuffer buf, PointStore points, int i) {
+            buf.putDouble(points.getMz(i));
+            buf.putFloat(points.getRt(i));
+            buf.putDouble(points.getIntensity(i));
+            buf.putInt(points.getMeta1(i));
         }
         
-        /* Reserves space in the file for the necessary number of points */
+        /* Reserves space in the file for the necessary number of points. The file is not
+           mapped until flush has released the space not filled, see flush */
         public synchronized void reserveSpace(int numPoints) throws IOException {
             pointFile.setLength((long)(numPoints) * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT);
         }
         
         /**
-         * Inserts a MsDataPoint into the point file at the current point file pointer location
-         * @param point MsDataPoint to insert into database
-         * @throws SQLException 
+         * Writes points [from, to) of a store with a single positional write, at the
+         * file position of their pointIDs. The points' IDs must be consecutive.
+         * Writes of disjoint ID ranges may proceed concurrently.
+         * @param points store holding the points to write
+         * @param from index of the first point to write
+         * @param to index after the last point to write
+         * @return file location of the first point of the block
+         * @throws IOException 
          */
-        public synchronized void insert(MsDataPoint point) throws IOException
+        public long writeAll(PointStore points, int from, int to) throws IOException
         {
-            // write the point to the point file
-            byte[] data = pointToBytes(point);
-            pointFile.write(data);
-           
-            // assign the point's ID
-            point.pointID = this.pointCount;
-            this.pointCount++;
+            long blockLocation = (long) points.getPointID(from) * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+            
+            int numBytes = (to - from) * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+            ByteBuffer buf = this.writeBuffers.get();
+            if (buf == null || buf.capacity() < numBytes) {
+                buf = ByteBuffer.allocateDirect(numBytes);
+                this.writeBuffers.set(buf);
+            }
+            
+            // serialize the block
+            buf.clear();
+            for (int i = from; i < to; i++)
+                putPoint(buf, points, i);
+            buf.flip();
+            
+            long position = blockLocation;
+            while (buf.hasRemaining())
+                position += this.pointChannel.write(buf, position);
+            
+            // the file holds every point up to the highest written
+            this.extendPointCount(points.getPointID(from) + (to - from));
+            
+            return blockLocation;
+        }
+        
+        private synchronized void extendPointCount(int numPoints) {
+            if (numPoints > this.pointCount)
+                this.pointCount = numPoints;
         }
         
          /**
-         * Selects a point entity from the database, returns as MsDataPoint object
+         * Selects a point entity from the point file, appending it to out
          * @param pointID ID of point to select
-         * @return MsDataPoint selected from database
-         * @throws SQLException 
+         * @param out store to append the point to
+         * @throws IOException 
          */
-        public synchronized MsDataPoint selectPoint(int pointID) throws IOException
+        public void selectPoint(int pointID, PointStore out) throws IOException
         {
             if (pointID < 0) {
                 throw new IndexOutOfBoundsException("pointID");
@@ -639,97 +875,158 @@ public class HybridStorage implements StorageFacade
                 throw new IndexOutOfBoundsException("pointID");
             }
 
+            // read from the mapping if it covers the point
+            MappedByteBuffer[] regions = this.mappedRegions;
+            if (regions != null && pointID < this.numMappedPoints) {
+                int offset = (pointID & (POINTS_PER_REGION - 1)) * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+                readPoint(pointID, regions[pointID >>> POINTS_PER_REGION_SHIFT], offset, out);
+                return;
+            }
+            
+            // otherwise read the point with a positional read
             // convert to long to avoid integer overflow
             long pointLocation = (long)pointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT;
-            this.pointFile.seek(pointLocation);
-            byte[] data = new byte[MsDataPoint.DISK_NUM_BYTES_PER_POINT];
-            this.pointFile.read(data);
-            return pointFromBytes(pointID, data);
+            ByteBuffer data = ByteBuffer.allocate(MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+            this.readFully(data, pointLocation);
+            readPoint(pointID, data, 0, out);
+        }
+        
+        /**
+         * Fills buf from the point file starting at position using positional reads,
+         * which neither use nor move the insert cursor and may proceed concurrently
+         * @param buf buffer to fill
+         * @param position file position of the first byte to read
+         * @throws IOException if the end of the file is reached before buf is filled
+         */
+        private void readFully(ByteBuffer buf, long position) throws IOException
+        {
+            while (buf.hasRemaining()) {
+                int numRead = this.pointChannel.read(buf, position);
+                if (numRead < 0)
+                    throw new EOFException("Point file ended at position " + position);
+                position += numRead;
+            }
         }
         
         /**
          * Queries for points specified in pointIDs
          * @param pointIDs IDs of points to select
-         * @return MsDataPoints selected from storage
-         * @throws SQLException 
+         * @return points selected from storage, in pointIDs order
+         * @throws IOException 
          */
-        public synchronized List<MsDataPoint> selectPoints(List<Integer> pointIDs) throws IOException
+        public PointStore selectPoints(int[] pointIDs) throws IOException
         {
-            // remember where we were
-            long filePosBefore = this.pointFile.getFilePointer();
-            
-            // return list
-            ArrayList<MsDataPoint> points = new ArrayList<>(pointIDs.size());
-            for (Integer id : pointIDs) {
-                points.add(this.selectPoint(id));
+            PointStore points = new PointStore(pointIDs.length);
+            for (int id : pointIDs) {
+                this.selectPoint(id, points);
             }
             
-            // reset to position of cursor before load
-            this.pointFile.seek(filePosBefore);
+            return points;
+        }
+        
+        /**
+         * Selects all of a node's points, leaf nodes by loading their entire block of points
+         * @param node node whose pointIDs have been loaded
+         * @return the node's points, in pointIDs order
+         * @throws IOException 
+         */
+        public PointStore selectNodePoints(MzTreeNode node) throws IOException
+        {
+            if (node.fileIndex == null)
+                return this.selectPoints(node.pointIDs);
             
+            // unbounded in both dimensions, every point of the block is kept
+            PointStore points = new PointStore(node.numSavedPoints);
+            this.selectLeafPointsInBounds(node, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, points);
             return points;
         }
         
         /**
          * Selects a leaf node's points from the point file by loading its entire block of points.
          * Allows for accessing an entire leaf node's data points with only one file seek.
-         * Additionally trims the resulting list according to the given bounds
+         * Only the points within the given bounds are kept
          * @param leaf leaf node that will have data block loaded
          * @param mzmin lower mz bound
          * @param mzmax upper mz bound
          * @param rtmin lower rt bound
          * @param rtmax upper rt bound
-         * @return list of MsDataPoints loaded from leaf node's data block, trimmed according to data bounds
+         * @param intmin lower intensity bound
+         * @param intmax upper intensity bound
+         * @param results store that the leaf's points within the bounds are appended to
          * @throws IOException 
          */
-        public synchronized List<MsDataPoint> selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax) throws IOException
+        public void selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax, double intmin, double intmax, PointStore results) throws IOException
         {
-            // results list
-            List<MsDataPoint> results = new ArrayList<>();
-
             if (leaf.fileIndex == null) {
                 // not a leaf node, or upgraded from a version without this optimization
-                return selectPoints(leaf.pointIDs)
-                        .stream().filter(p -> p.isInBounds(mzmin, mzmax, rtmin, rtmax)).collect(Collectors.toList());
+                PointStore points = selectPoints(leaf.pointIDs);
+                for (int i = 0; i < points.size(); i++)
+                    if (points.isInBounds(i, mzmin, mzmax, rtmin, rtmax, intmin, intmax))
+                        results.add(points, i);
+                return;
             }
 
-            // start location of node in point file
-            long nodeStartLocation = leaf.fileIndex;
-            
-            // seek to start of node in point file
-            this.pointFile.seek(nodeStartLocation);
+            // decode straight from the mapping if it covers the whole block
+            int firstPoint = (int) (leaf.fileIndex / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+            int lastPoint = firstPoint + leaf.numSavedPoints - 1;
+            MappedByteBuffer[] regions = this.mappedRegions;
+            if (regions == null || lastPoint >= this.numMappedPoints) {
+                this.selectPositionalLeafPointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax, intmin, intmax, results);
+                return;
+            }
             
+            for(int i = 0; i < leaf.numSavedPoints; i++)
+            {
+                int filePointID = firstPoint + i;
+                ByteBuffer region = regions[filePointID >>> POINTS_PER_REGION_SHIFT];
+                int offset = (filePointID & (POINTS_PER_REGION - 1)) * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+                
+                // include in result set if within bounds, a point's ID is its position in the file
+                readPointInBounds(filePointID, region, offset, results, mzmin, mzmax, rtmin, rtmax, intmin, intmax);
+            }
+        }
+        
+        /**
+         * Selects a leaf node's points by reading its block with a single positional read,
+         * for blocks outside of the mapping
+         * @see #selectLeafPointsInBounds
+         */
+        private void selectPositionalLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax, double intmin, double intmax, PointStore results) throws IOException
+        {
             // allocated space for the node block
-            byte[] data = new byte[leaf.numSavedPoints * MsDataPoint.DISK_NUM_BYTES_PER_POINT];
+            ByteBuffer block = ByteBuffer.allocate(leaf.numSavedPoints * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
             
-            // read node block
-            this.pointFile.read(data);
+            // read node block starting at the node's location in the point file
+            this.readFully(block, leaf.fileIndex);
             
             // parse points from retrieved binary
+            int firstPoint = (int) (leaf.fileIndex / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
             for(int i = 0; i < leaf.numSavedPoints; i++)
             {
-                // current point's sub array
-                byte[] pointData = Arrays.copyOfRange(data, i * MsDataPoint.DISK_NUM_BYTES_PER_POINT, (i+1) * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
-                
-                // parse into MsDataPoint
-                MsDataPoint point = this.pointFromBytes(leaf.pointIDs.get(i), pointData);
-                
-                //assert point.mz >= leaf.mzMin && point.mz <= leaf.mzMax && point.rt >= leaf.rtMin && point.rt <= leaf.rtMax : "A loaded point was outside of its node's bounds!!!";
-                
-                // include in result set if within bounds
-                if(point.isInBounds(mzmin, mzmax, rtmin, rtmax))
-                    results.add(point);
+                // include in result set if within bounds, a point's ID is its position in the file
+                readPointInBounds(firstPoint + i, block, i * MsDataPoint.DISK_NUM_BYTES_PER_POINT, results, mzmin, mzmax, rtmin, rtmax, intmin, intmax);
             }
-            return results;
         }
 
-        /* Ensures changes have been saved to the underlying storage medium */
+        /* Ensures changes have been saved to the underlying storage medium. If the file
+           is not mapped yet, reserved space beyond the inserted points is released and
+           the file is then mapped. A mapped file is never shrunk: query threads may still
+           read the buffers handed out, touching a page beyond the end of the file crashes
+           the JVM, and Windows refuses to shrink a file while it is mapped */
         private synchronized void flush() throws IOException {
+            if (this.mappedRegions == null) {
+                long numBytes = (long) this.pointCount * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+                if (pointFile.length() > numBytes) {
+                    try {
+                        pointFile.setLength(numBytes);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not release reserved point file space", e);
+                    }
+                }
+                this.mapPointFile();
+            }
             pointFile.getFD().sync();
         }
-
-        private synchronized long getCurrentFileLocation() throws IOException {
-            return this.pointFile.getFilePointer();
-        }
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Compact encoding of a node's point IDs for the Node.points column
+ *
+ * BLOB FORMAT
+ * TAG  : 1 byte, ENCODING_DELTA or ENCODING_RUNS
+ * COUNT: varint, number of point IDs
+ * DELTA: one zigzag varint per ID, the difference from the previous ID (first ID is relative to 0)
+ * RUNS : pairs of (zigzag varint gap from the previous run's end, varint run length)
+ *        where a run is a sequence of consecutive ascending IDs
+ *
+ * Leaf nodes own a contiguous block of IDs and encode as a single run,
+ * summary nodes are mostly ascending and encode as small deltas.
+ */
+class PointIDCodec
+{
+    static final byte ENCODING_DELTA = 0;
+    static final byte ENCODING_RUNS = 1;
+
+    /**
+     * Encodes the point IDs, choosing whichever format is smaller
+     * @param pointIDs IDs to encode
+     * @return encoded blob
+     */
+    static byte[] encode(int[] pointIDs)
+    {
+        // count runs of consecutive IDs
+        int numRuns = 0;
+        for (int i = 0; i < pointIDs.length; i++)
+            if (i == 0 || pointIDs[i] != pointIDs[i-1] + 1)
+                numRuns++;
+
+        // a run costs two varints, a delta one
+        boolean useRuns = numRuns * 2 < pointIDs.length;
+
+        // worst case: tag + count + 5 bytes per varint
+        byte[] out = new byte[1 + 5 + (useRuns ? numRuns * 10 : pointIDs.length * 5)];
+        int pos = 0;
+
+        out[pos++] = useRuns ? ENCODING_RUNS : ENCODING_DELTA;
+        pos = writeVarint(out, pos, pointIDs.length);
+
+        if (useRuns)
+        {
+            int previousEnd = 0;
+            int i = 0;
+            while (i < pointIDs.length)
+            {
+                // extend the run as long as IDs are consecutive
+                int runStart = i;
+                i++;
+                while (i < pointIDs.length && pointIDs[i] == pointIDs[i-1] + 1)
+                    i++;
+
+                pos = writeVarint(out, pos, zigzag(pointIDs[runStart] - previousEnd));
+                pos = writeVarint(out, pos, i - runStart);
+                previousEnd = pointIDs[i-1] + 1;
+            }
+        }
+        else
+        {
+            int previous = 0;
+            for (int pointID : pointIDs)
+            {
+                pos = writeVarint(out, pos, zigzag(pointID - previous));
+                previous = pointID;
+            }
+        }
+
+        return Arrays.copyOf(out, pos);
+    }
+
+    /**
+     * Decodes a blob produced by encode
+     * @param bytes encoded blob
+     * @return point IDs in their original order
+     * @throws DataFormatException if the blob is malformed
+     */
+    static int[] decode(byte[] bytes) throws DataFormatException
+    {
+        try {
+            int[] cursor = { 1 };
+            int count = readVarint(bytes, cursor);
+
+            // a corrupt count must not allocate beyond what the blob can hold
+            if (count < 0 || count > maxNumEncoded(bytes, cursor[0]))
+                throw new DataFormatException("Point ID count " + count + " exceeds the blob");
+            int[] pointIDs = new int[count];
+
+            switch (bytes[0])
+            {
+                case ENCODING_RUNS:
+                    int previousEnd = 0;
+                    int i = 0;
+                    while (i < count)
+                    {
+                        int runStart = previousEnd + unzigzag(readVarint(bytes, cursor));
+                        int runLength = readVarint(bytes, cursor);
+                        for (int j = 0; j < runLength; j++)
+                            pointIDs[i++] = runStart + j;
+                        previousEnd = runStart + runLength;
+                    }
+                    break;
+
+                case ENCODING_DELTA:
+                    int previous = 0;
+                    for (int j = 0; j < count; j++)
+                    {
+                        previous += unzigzag(readVarint(bytes, cursor));
+                        pointIDs[j] = previous;
+                    }
+                    break;
+
+                default:
+                    throw new DataFormatException("Unknown point ID encoding " + bytes[0]);
+            }
+
+            return pointIDs;
+        }
+        catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new DataFormatException("Truncated point ID blob");
+        }
+    }
+
+    /* Upper bound of the number of IDs encoded from pos on: a delta takes at least a byte, runs are summed */
+    private static long maxNumEncoded(byte[] bytes, int pos)
+    {
+        if (bytes[0] != ENCODING_RUNS)
+            return bytes.length - pos;
+
+        long numEncoded = 0;
+        int[] cursor = { pos };
+        while (cursor[0] < bytes.length)
+        {
+            readVarint(bytes, cursor);
+            numEncoded += readVarint(bytes, cursor) & 0xFFFFFFFFL;
+        }
+        return numEncoded;
+    }
+
+    /* Writes an unsigned LEB128 varint at pos, returns the position after it */
+    private static int writeVarint(byte[] out, int pos, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /* Reads an unsigned LEB128 varint at cursor[0], advancing the cursor */
+    private static int readVarint(byte[] in, int[] cursor)
+    {
+        int pos = cursor[0];
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        cursor[0] = pos;
+        return value;
+    }
+
+    /* Maps signed deltas to unsigned values so small negatives stay small */
+    private static int zigzag(int value)
+    {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -6,8 +6,8 @@
 package edu.msViz.mzTree.storage;
 
 import edu.msViz.mzTree.ImportState;
-import edu.msViz.mzTree.MsDataPoint;
 import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointStore;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +39,13 @@ public interface StorageFacade
      */
     public List<MzTreeNode> loadChildNodes(MzTreeNode parent) throws Exception;
 
+    /**
+     * Loads every node in a single pass, grouped by the ID of their parent node
+     * @return lists of nodes keyed by parent node ID, the root node is keyed by 0
+     * @throws Exception
+     */
+    public Map<Integer, List<MzTreeNode>> loadNodesByParent() throws Exception;
+
     /**
      * Copies the data storage to a new location
      * @param targetFilepath
@@ -58,7 +65,7 @@ public interface StorageFacade
      * @return node's point IDs
      * @throws Exception 
      */
-    public List<Integer> getNodePointIDs(int nodeID) throws Exception;
+    public int[] getNodePointIDs(int nodeID) throws Exception;
 
     /**
      * Saves the node to the storage solution
@@ -70,8 +77,10 @@ public interface StorageFacade
     public int saveNode(MzTreeNode node, int parentNodeID) throws Exception;
     
     /**
-     * Saves the given points to the storage solution
-     * @param points MsDataPoints to save
+     * Saves the task's points to the storage solution. The points' pointIDs are assigned
+     * by the caller and must be consecutive, each point is stored at the position of its ID.
+     * Tasks over disjoint ranges of IDs may be saved concurrently.
+     * @param task node and range of points to save
      * @param importState import progress monitor
      * @throws Exception 
      */
@@ -85,13 +94,35 @@ public interface StorageFacade
      */
     public void saveNodePoints(MzTreeNode curNode, ImportState importState) throws Exception;
     
+    /**
+     * Checks whether the points of every node are stored in descending rank order
+     * (see PointRank), files built before rank ordering was introduced are not
+     * @return true if node points are in rank order
+     * @throws Exception 
+     */
+    public boolean isRankOrdered() throws Exception;
+    
+    /**
+     * Records that the points of every node are stored in descending rank order
+     * @throws Exception 
+     */
+    public void setRankOrdered() throws Exception;
+    
     /**
      * Loads the requested points from storage
      * @param pointIDs IDs of points to load
-     * @return list of MsDataPoints loaded from storage
+     * @return points loaded from storage
+     * @throws java.lang.Exception
+     */
+    public PointStore loadPoints(int[] pointIDs) throws Exception;
+    
+    /**
+     * Loads all of the points of a node, leaf nodes are read as one block
+     * @param node node whose pointIDs have been loaded
+     * @return the node's points, in pointIDs order
      * @throws java.lang.Exception
      */
-    public List<MsDataPoint> loadPoints(List<Integer> pointIDs) throws Exception;
+    public PointStore loadNodePoints(MzTreeNode node) throws Exception;
     
     /**
      * Loads all of the points belonging to the inputted set of leaf mzTreeNodes
@@ -100,10 +131,12 @@ public interface StorageFacade
      * @param mzmax
      * @param rtmin
      * @param rtmax
-     * @return list of points belonging to leaf nodes
+     * @param intmin
+     * @param intmax
+     * @return points belonging to leaf nodes that are within the bounds
      * @throws java.lang.Exception 
      */
-    public List<MsDataPoint> loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax) throws Exception;
+    public PointStore loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax, double intmin, double intmax) throws Exception;
     
     /**
      * Performs any commits or updates that are required to flush
@@ -125,11 +158,15 @@ public interface StorageFacade
 
     public class SavePointsTask {
         public MzTreeNode node;
-        public List<MsDataPoint> dataset;
-        public SavePointsTask(MzTreeNode inNode, List<MsDataPoint> inDataset)
+        public PointStore dataset;
+        public int from;
+        public int to;
+        public SavePointsTask(MzTreeNode inNode, PointStore inDataset, int inFrom, int inTo)
         {
             this.node = inNode;
             this.dataset = inDataset;
+            this.from = inFrom;
+            this.to = inTo;
         }
     }
 }
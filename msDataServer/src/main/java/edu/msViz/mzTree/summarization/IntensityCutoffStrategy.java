@@ -5,10 +5,8 @@
  */
 package edu.msViz.mzTree.summarization;
 
-import edu.msViz.mzTree.MsDataPoint;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import edu.msViz.mzTree.PointStore;
+import java.util.Arrays;
 
 /**
  * Summarization strategy that selects the numPoints most intense points
@@ -17,12 +15,15 @@ import java.util.List;
 public class IntensityCutoffStrategy extends SummarizationStrategy
 {
     @Override
-    public List<MsDataPoint> summarize(List<MsDataPoint> dataset, int numPoints){
+    public int[] summarize(PointStore dataset, int numPoints){
         
-        // sort dataset by intensity
-        Collections.sort(dataset, Comparator.comparing((MsDataPoint dataPoint) -> dataPoint.intensity));
+        // sort dataset indices by intensity
+        double[] intensities = new double[dataset.size()];
+        for (int i = 0; i < intensities.length; i++)
+            intensities[i] = dataset.getIntensity(i);
+        int[] sorted = PointStore.argsort(intensities);
         
         // return final numPoints of sorted array (numPoints most intense points)
-        return dataset.subList(dataset.size() - numPoints,dataset.size());
+        return Arrays.copyOfRange(sorted, Math.max(sorted.length - numPoints, 0), sorted.length);
     }
 }
@@ -5,8 +5,7 @@
  */
 package edu.msViz.mzTree.summarization;
 
-import edu.msViz.mzTree.MsDataPoint;
-import java.util.List;
+import edu.msViz.mzTree.PointStore;
 import java.util.Random;
 
 /**
@@ -20,50 +19,84 @@ public abstract class SummarizationStrategy
      * Summarize the given dataset by selecting numPoints of the set
      * @param dataset dataset to summarize
      * @param numPoints number of points to select
-     * @return summarized dataset
+     * @return indices into dataset of the selected points
      */
-    public abstract List<MsDataPoint> summarize(List<MsDataPoint> dataset, int numPoints);
+    public abstract int[] summarize(PointStore dataset, int numPoints);
+    
+    /**
+     * Summarize the given dataset by selecting numPoints of the set, each point standing
+     * in for weight times its intensity. Strategies that weigh points by intensity weigh
+     * them by this intensity mass instead, the others ignore the weights.
+     * @param dataset dataset to summarize
+     * @param weights weight of each point of the dataset
+     * @param numPoints number of points to select
+     * @return indices into dataset of the selected points
+     */
+    public int[] summarize(PointStore dataset, double[] weights, int numPoints)
+    {
+        return this.summarize(dataset, numPoints);
+    }
+    
+    /**
+     * Indices of every point in a dataset, in order
+     * @param dataset dataset to index
+     * @return array holding 0 .. dataset.size() - 1
+     */
+    protected int[] allIndices(PointStore dataset)
+    {
+        int[] indices = new int[dataset.size()];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = i;
+        return indices;
+    }
     
     /**
      * Fisher-Yates shuffle algorithm
-     * @param dataset 
+     * @param indices 
      */
-    protected void shuffle(List<MsDataPoint> dataset)
+    protected void shuffle(int[] indices)
     {
         // random number generator
         Random rnd = new Random(System.currentTimeMillis());
         
         // shuffle the data, starting at last point swap with random point
-        for (int i = dataset.size() - 1; i > 0; i--)
+        for (int i = indices.length - 1; i > 0; i--)
         {
             // index of point to swap with (always precedes focused point)
             int index = rnd.nextInt(i + 1);
             
             // swap
-            MsDataPoint temp = dataset.get(index);
-            dataset.set(index, dataset.get(i));
-            dataset.set(i, temp);
+            int temp = indices[index];
+            indices[index] = indices[i];
+            indices[i] = temp;
         }
     }
     
-    protected double sumMz(List<MsDataPoint> dataset){
+    protected double sumMz(PointStore dataset){
         double accumulator = 0;
-        for(MsDataPoint p : dataset)
-            accumulator += p.mz;
+        for(int i = 0; i < dataset.size(); i++)
+            accumulator += dataset.getMz(i);
         return accumulator;
     }
     
-    protected float sumRt(List<MsDataPoint> dataset){
+    protected float sumRt(PointStore dataset){
         float accumulator = 0;
-        for(MsDataPoint p : dataset)
-            accumulator += p.rt;
+        for(int i = 0; i < dataset.size(); i++)
+            accumulator += dataset.getRt(i);
+        return accumulator;
+    }
+    
+    protected double sumIntensity(PointStore dataset){
+        double accumulator = 0;
+        for(int i = 0; i < dataset.size(); i++)
+            accumulator += dataset.getIntensity(i);
         return accumulator;
     }
     
-    protected double sumIntensity(List<MsDataPoint> dataset){
+    protected double sumIntensity(PointStore dataset, double[] weights){
         double accumulator = 0;
-        for(MsDataPoint p : dataset)
-            accumulator += p.intensity;
+        for(int i = 0; i < dataset.size(); i++)
+            accumulator += dataset.getIntensity(i) * weights[i];
         return accumulator;
     }
 }
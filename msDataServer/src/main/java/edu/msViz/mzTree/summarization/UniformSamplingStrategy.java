@@ -5,8 +5,8 @@
  */
 package edu.msViz.mzTree.summarization;
 
-import edu.msViz.mzTree.MsDataPoint;
-import java.util.List;
+import edu.msViz.mzTree.PointStore;
+import java.util.Arrays;
 
 /**
  * Summarization strategy that selects using uniform random sampling
@@ -15,13 +15,14 @@ import java.util.List;
 public class UniformSamplingStrategy extends SummarizationStrategy
 {
     @Override
-    public List<MsDataPoint> summarize(List<MsDataPoint> dataset, int numPoints)
+    public int[] summarize(PointStore dataset, int numPoints)
     {
         // shuffle the dataset (enter stochasticity)
-        this.shuffle(dataset);
+        int[] indices = this.allIndices(dataset);
+        this.shuffle(indices);
                 
         // return first numPoints
-        return dataset.subList(0, numPoints);
+        return Arrays.copyOf(indices, Math.min(numPoints, indices.length));
         
     }   
 }
@@ -5,9 +5,7 @@
  */
 package edu.msViz.mzTree.summarization;
 
-import edu.msViz.mzTree.MsDataPoint;
-import java.util.ArrayList;
-import java.util.List;
+import edu.msViz.mzTree.PointStore;
 
 /**
  * Summarization strategy that selects data points by striding through the dataset
@@ -16,18 +14,20 @@ import java.util.List;
 public class UniformStridingStrategy extends SummarizationStrategy
 {
     @Override
-    public List<MsDataPoint> summarize(List<MsDataPoint> dataset, int numPoints)
+    public int[] summarize(PointStore dataset, int numPoints)
     {
+        numPoints = Math.min(numPoints, dataset.size());
+        
         // calculate length of the stride that will achieve the desired
         // number of points
         int strideLength = dataset.size()/numPoints;
         
         // the selected datapoints
-        List<MsDataPoint> selection = new ArrayList<>(numPoints);
+        int[] selection = new int[numPoints];
         
         // stride through dataset and collect sample
         for(int i = 0; i < numPoints; i++)
-            selection.set(i, dataset.get(i * strideLength));
+            selection[i] = i * strideLength;
         
         return selection;
     }
@@ -5,10 +5,8 @@
  */
 package edu.msViz.mzTree.summarization;
 
-import edu.msViz.mzTree.MsDataPoint;
-import java.util.ArrayList;
+import edu.msViz.mzTree.PointStore;
 import java.util.Iterator;
-import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Random;
 
@@ -21,19 +19,25 @@ import java.util.Random;
 public class WeightedReservoirSampling extends SummarizationStrategy
 {
     @Override
-    public List<MsDataPoint> summarize(List<MsDataPoint> dataset, int numPoints)
+    public int[] summarize(PointStore dataset, int numPoints)
+    {
+        return this.summarize(dataset, null, numPoints);
+    }
+
+    @Override
+    public int[] summarize(PointStore dataset, double[] weights, int numPoints)
     {
         Random rand = new Random();
         // PriorityQueue for holding numPoints points and removing lowest priority point when replaced
         PriorityQueue<WeightedPoint> q = new PriorityQueue<>();
-        List<MsDataPoint> pointsToReturn = new ArrayList<>(numPoints);
         
         // Looks at every point in data set and randomly replaces a point
         // with a new point when appropriate based on weights
         for (int i = 0; i < dataset.size(); i++) {
             WeightedPoint p = new WeightedPoint();
-            p.point = dataset.get(i);
-            p.priority = Math.pow(rand.nextDouble(),(1.0/p.point.intensity)); // priority calculated based on random double and weight
+            p.index = i;
+            double weight = (weights != null) ? dataset.getIntensity(i) * weights[i] : dataset.getIntensity(i);
+            p.priority = Math.pow(rand.nextDouble(),(1.0/weight)); // priority calculated based on random double and weight
             if (q.size() < numPoints) {  //add every point until we have numPoints
                 q.add(p);
             }
@@ -43,10 +47,11 @@ public class WeightedReservoirSampling extends SummarizationStrategy
             }
         }
         
-        // iterates over PriorityQueue and adds each MsDataPoint to an array
+        // iterates over PriorityQueue and adds each point's index to an array
+        int[] pointsToReturn = new int[q.size()];
         Iterator<WeightedPoint> it = q.iterator();
         for (int i = 0; it.hasNext(); i++) {
-            pointsToReturn.set(i,it.next().point);
+            pointsToReturn[i] = it.next().index;
         }
         
         
@@ -56,7 +61,7 @@ public class WeightedReservoirSampling extends SummarizationStrategy
 }
 // WeightedPoint class because points need to have a stored priority to compare
 class WeightedPoint implements Comparable{
-    MsDataPoint point;
+    int index;
     double priority;
 
     @Override
@@ -64,4 +69,3 @@ class WeightedPoint implements Comparable{
         return (Double.compare(this.priority, ((WeightedPoint)o).priority));
     }
 }
-
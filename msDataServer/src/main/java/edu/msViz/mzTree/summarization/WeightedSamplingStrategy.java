@@ -5,9 +5,7 @@
  */
 package edu.msViz.mzTree.summarization;
 
-import edu.msViz.mzTree.MsDataPoint;
-import java.util.ArrayList;
-import java.util.List;
+import edu.msViz.mzTree.PointStore;
 import java.util.Random;
 
 /**
@@ -17,24 +15,32 @@ import java.util.Random;
 public class WeightedSamplingStrategy extends SummarizationStrategy
 {
     @Override
-    public List<MsDataPoint> summarize(List<MsDataPoint> dataset, int numPoints)
+    public int[] summarize(PointStore dataset, int numPoints)
+    {
+        return this.summarize(dataset, null, numPoints);
+    }
+
+    @Override
+    public int[] summarize(PointStore dataset, double[] weights, int numPoints)
     {
         // sum of intensity values
-        float intensitySum = (float)this.sumIntensity(dataset);
+        float intensitySum = (float)((weights != null) ? this.sumIntensity(dataset, weights) : this.sumIntensity(dataset));
         
         // f
         float f = numPoints / intensitySum;
         
-        // arraylist to store selected datapoints
-        List<MsDataPoint> selection = new ArrayList<>(numPoints);
+        // array to store selected datapoints
+        int[] selection = new int[numPoints];
+        int numSelected = 0;
         Random random = new Random(System.currentTimeMillis());
 
         // test each point for inclusion
-        for(int i = 0; selection.size() < numPoints; i = (i+1) % dataset.size())
+        for(int i = 0; numSelected < numPoints; i = (i+1) % dataset.size())
         {
-            float p = f * (float)dataset.get(i).intensity;
+            double intensity = (weights != null) ? dataset.getIntensity(i) * weights[i] : dataset.getIntensity(i);
+            float p = f * (float)intensity;
             if(random.nextFloat() <= p/2)
-                selection.add(dataset.get(i));
+                selection[numSelected++] = i;
         }
         
         return selection;
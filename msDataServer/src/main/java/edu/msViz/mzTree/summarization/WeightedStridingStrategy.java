@@ -5,10 +5,7 @@
  */
 package edu.msViz.mzTree.summarization;
 
-import edu.msViz.mzTree.MsDataPoint;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import edu.msViz.mzTree.PointStore;
 
 /**
  * Summarization strategy that accumulates the intensities of an intensity sorted
@@ -21,38 +18,51 @@ public class WeightedStridingStrategy extends SummarizationStrategy
     final int STRIDE_LENGTH = 43;
 
     @Override
-    public List<MsDataPoint> summarize(List<MsDataPoint> dataset, int numPoints)
+    public int[] summarize(PointStore dataset, int numPoints)
+    {
+        return this.summarize(dataset, null, numPoints);
+    }
+
+    @Override
+    public int[] summarize(PointStore dataset, double[] weights, int numPoints)
     {
         if (dataset.size() <= numPoints) {
-            return new ArrayList<>(dataset);
+            return this.allIndices(dataset);
         }
 
-        List<MsDataPoint> skippedPoints = new ArrayList<>();
-        ArrayList<MsDataPoint> selection = new ArrayList<>(numPoints);
+        // indices of the points still under consideration
+        int[] candidates = this.allIndices(dataset);
+        int numCandidates = candidates.length;
+
+        int[] skippedPoints = new int[candidates.length];
+        int numSkipped = 0;
+
+        int[] selection = new int[numPoints];
+        int numSelected = 0;
 
         // running total of accumulated intensity since the last selected point
         double intensityAccumulation = 0;
         
         // Threshold used during accumulation to decide when a point is included.
         // Total intensity divided by desired number of points gets a nice looking sample
-        double accumulationThreshold = this.sumIntensity(dataset) / numPoints;
+        double accumulationThreshold = ((weights != null) ? this.sumIntensity(dataset, weights) : this.sumIntensity(dataset)) / numPoints;
 
         int i = 0;
-        while (selection.size() < numPoints) {
-            MsDataPoint point = dataset.get(i);
-            intensityAccumulation += point.intensity;
+        while (numSelected < numPoints) {
+            int point = candidates[i];
+            intensityAccumulation += (weights != null) ? dataset.getIntensity(point) * weights[point] : dataset.getIntensity(point);
 
             // when accumulation passes the threshold, select the point and reduce the accumulator
             if (intensityAccumulation >= (accumulationThreshold - 1.0e-5)) {
-                selection.add(point);
+                selection[numSelected++] = point;
                 intensityAccumulation -= accumulationThreshold;
             } else {
-                skippedPoints.add(point);
+                skippedPoints[numSkipped++] = point;
             }
             
             i += STRIDE_LENGTH;
 
-            if (i >= dataset.size()) {
+            if (i >= numCandidates) {
                 // stride through data again, starting with a new index
                 i = (i+1) % STRIDE_LENGTH;
             }
@@ -60,8 +70,11 @@ public class WeightedStridingStrategy extends SummarizationStrategy
             if (i == 0) {
                 // every point in dataset has been examined, so now only consider the previously skipped points
                 // this prevents already added points from being added again
-                dataset = skippedPoints;
-                skippedPoints = new ArrayList<>();
+                int[] swap = candidates;
+                candidates = skippedPoints;
+                numCandidates = numSkipped;
+                skippedPoints = swap;
+                numSkipped = 0;
             }
         }
         
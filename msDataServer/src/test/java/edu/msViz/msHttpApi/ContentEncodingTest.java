@@ -0,0 +1,118 @@
+package edu.msViz.msHttpApi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+public class ContentEncodingTest {
+
+    // large enough to be compressed
+    private static final long NUM_BYTES = 100000;
+
+    @Test
+    public void choosesHighestQuality() {
+        assertEquals(ContentEncoding.GZIP, negotiate("gzip"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("deflate"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=0.5, deflate"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip; q=0.5, deflate; q=0.8"));
+        assertEquals(ContentEncoding.GZIP, negotiate("deflate;q=0.1, gzip;q=0.2, br"));
+    }
+
+    @Test
+    public void tiesPreferGzip() {
+        assertEquals(ContentEncoding.GZIP, negotiate("gzip, deflate"));
+        assertEquals(ContentEncoding.GZIP, negotiate("deflate, gzip"));
+        assertEquals(ContentEncoding.GZIP, negotiate("deflate;q=0.5, gzip;q=0.5"));
+    }
+
+    @Test
+    public void zeroQualityExcludesCoding() {
+        assertEquals(ContentEncoding.IDENTITY, negotiate("gzip;q=0"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=0, deflate"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=0.0, deflate;q=0.001"));
+        assertEquals(ContentEncoding.IDENTITY, negotiate("gzip;q=0, deflate;q=0"));
+    }
+
+    @Test
+    public void wildcardCoversUnlistedCodings() {
+        assertEquals(ContentEncoding.GZIP, negotiate("*"));
+        assertEquals(ContentEncoding.GZIP, negotiate("br, *;q=0.5"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=0, *"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("*;q=0.9, gzip;q=0.5"));
+        assertEquals(ContentEncoding.GZIP, negotiate("*;q=0.2, gzip;q=0.5"));
+        assertEquals(ContentEncoding.IDENTITY, negotiate("*;q=0"));
+        assertEquals(ContentEncoding.GZIP, negotiate("*;q=0, gzip"));
+    }
+
+    @Test
+    public void malformedQualityIsZero() {
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=high, deflate;q=0.1"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=, deflate;q=0.1"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=2, deflate;q=0.1"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=-1, deflate;q=0.1"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate("gzip;q=NaN, deflate;q=0.1"));
+    }
+
+    @Test
+    public void ignoresCaseAndWhitespace() {
+        assertEquals(ContentEncoding.GZIP, negotiate("GZIP"));
+        assertEquals(ContentEncoding.DEFLATE, negotiate(" Deflate ;q=1 , gzip ; q=0.3"));
+    }
+
+    @Test
+    public void smallOrUnacceptedPayloadsAreIdentity() {
+        assertEquals(ContentEncoding.IDENTITY, ContentEncoding.negotiate(null, NUM_BYTES));
+        assertEquals(ContentEncoding.IDENTITY, ContentEncoding.negotiate("", NUM_BYTES));
+        assertEquals(ContentEncoding.IDENTITY, ContentEncoding.negotiate("gzip", 1023));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.negotiate("gzip", 1024));
+        assertEquals(ContentEncoding.IDENTITY, negotiate("br, compress, identity"));
+    }
+
+    @Test
+    public void wrappedStreamsRoundTrip() throws IOException {
+        byte[] payload = new byte[300000];
+        Random random = new Random(1);
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) ('0' + random.nextInt(10));
+
+        // each compression level
+        for (long numBytes : new long[] { 1024, 1024 * 1024, 10 * 1024 * 1024 }) {
+            assertArrayEquals(payload, roundTrip(ContentEncoding.GZIP, payload, numBytes));
+            assertArrayEquals(payload, roundTrip(ContentEncoding.DEFLATE, payload, numBytes));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertSame(out, ContentEncoding.IDENTITY.wrap(out, NUM_BYTES));
+    }
+
+    private static ContentEncoding negotiate(String acceptEncoding) {
+        return ContentEncoding.negotiate(acceptEncoding, NUM_BYTES);
+    }
+
+    /* Encodes a payload, then decodes it */
+    private static byte[] roundTrip(ContentEncoding encoding, byte[] payload, long numBytes) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (OutputStream out = encoding.wrap(encoded, numBytes)) {
+            out.write(payload);
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(encoded.toByteArray());
+        try (InputStream decoded = (encoding == ContentEncoding.GZIP) ? new GZIPInputStream(in) : new InflaterInputStream(in)) {
+            byte[] result = new byte[payload.length + 1];
+            int numRead = 0;
+            for (int n; (n = decoded.read(result, numRead, result.length - numRead)) > 0; )
+                numRead += n;
+            return Arrays.copyOf(result, numRead);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package edu.msViz.msHttpApi;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ShortestDecimalTest {
+
+    private static final int NUM_RANDOM = 50000;
+
+    @Test
+    public void writesExactValues() {
+        assertEquals("0", writeDouble(0.0));
+        assertEquals("-0", writeDouble(-0.0));
+        assertEquals("1", writeDouble(1.0));
+        assertEquals("-2.5", writeDouble(-2.5));
+        assertEquals("0.1", writeDouble(0.1));
+        assertEquals("0.3", writeDouble(0.3));
+        assertEquals("0.30000000000000004", writeDouble(0.1 + 0.2));
+        assertEquals("123456.789", writeDouble(123456.789));
+        assertEquals("9007199254740992", writeDouble(9007199254740992.0));
+        assertEquals("1.7976931348623157E308", writeDouble(Double.MAX_VALUE));
+        assertEquals("4.9E-324", writeDouble(Double.MIN_VALUE));
+        assertEquals("2.2250738585072014E-308", writeDouble(Double.MIN_NORMAL));
+
+        assertEquals("0.1", writeFloat(0.1f));
+        assertEquals("1.1", writeFloat(1.1f));
+        assertEquals("-0", writeFloat(-0.0f));
+        assertEquals("3.4028235E38", writeFloat(Float.MAX_VALUE));
+        assertEquals("1.4E-45", writeFloat(Float.MIN_VALUE));
+        assertEquals("1.1754944E-38", writeFloat(Float.MIN_NORMAL));
+    }
+
+    @Test
+    public void laysOutLikeJavaScript() {
+        // plain for leading digit exponents from -7 to 20
+        assertEquals("100000000000000000000", writeDouble(1e20));
+        assertEquals("123400000000000000000", writeDouble(1.234e20));
+        assertEquals("0.0000001", writeDouble(1e-7));
+        assertEquals("0.00000012", writeDouble(1.2e-7));
+
+        // scientific otherwise
+        assertEquals("1E21", writeDouble(1e21));
+        assertEquals("1.5E21", writeDouble(1.5e21));
+        assertEquals("1E-8", writeDouble(1e-8));
+        assertEquals("-1.25E-8", writeDouble(-1.25e-8));
+    }
+
+    @Test
+    public void writesNonFiniteAsNull() {
+        assertEquals("null", writeDouble(Double.NaN));
+        assertEquals("null", writeDouble(Double.POSITIVE_INFINITY));
+        assertEquals("null", writeDouble(Double.NEGATIVE_INFINITY));
+        assertEquals("null", writeFloat(Float.NaN));
+        assertEquals("null", writeFloat(Float.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void writesInts() {
+        for (int v : new int[] { 0, 7, -7, 10, 1000000, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+            byte[] buf = new byte[ShortestDecimal.MAX_NUM_BYTES];
+            int end = ShortestDecimal.writeInt(v, buf, 0);
+            assertEquals(Integer.toString(v), new String(buf, 0, end, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void writesAtPosition() {
+        byte[] buf = new byte[3 + ShortestDecimal.MAX_NUM_BYTES];
+        buf[0] = '[';
+        int end = ShortestDecimal.writeDouble(-1.5, buf, 1);
+        assertEquals("[-1.5", new String(buf, 0, end, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void randomDoublesAreShortestAndRoundTrip() {
+        Random random = new Random(1);
+        for (int i = 0; i < NUM_RANDOM; i++) {
+            double v = Double.longBitsToDouble(random.nextLong());
+            if (!Double.isNaN(v) && !Double.isInfinite(v))
+                assertShortestDouble(v);
+        }
+    }
+
+    @Test
+    public void boundaryDoublesAreShortestAndRoundTrip() {
+        // powers of 2, whose rounding interval is narrower below them, and their neighbours
+        for (int e = -1074; e <= 1023; e++) {
+            double v = Math.scalb(1.0, e);
+            assertShortestDouble(v);
+            assertShortestDouble(Math.nextUp(v));
+            assertShortestDouble(Math.nextDown(v));
+        }
+
+        // the smallest subnormals, scaled by 10 before rounding
+        for (long bits = 1; bits < 100; bits++)
+            assertShortestDouble(Double.longBitsToDouble(bits));
+
+        // integers near 2^53, written directly
+        for (long f = (1L << 53) - 50; f < (1L << 53) + 50; f++)
+            assertShortestDouble((double) f);
+
+        // typical mz, rt and intensity values
+        Random random = new Random(2);
+        for (int i = 0; i < NUM_RANDOM; i++) {
+            assertShortestDouble(100 + random.nextDouble() * 1900);
+            assertShortestDouble(Math.round(random.nextDouble() * 1e8) / 1e4);
+        }
+    }
+
+    @Test
+    public void floatsAreShortestAndRoundTrip() {
+        Random random = new Random(3);
+        for (int i = 0; i < NUM_RANDOM; i++) {
+            float v = Float.intBitsToFloat(random.nextInt());
+            if (!Float.isNaN(v) && !Float.isInfinite(v))
+                assertShortestFloat(v);
+        }
+
+        for (int e = -149; e <= 127; e++) {
+            float v = Math.scalb(1.0f, e);
+            assertShortestFloat(v);
+            assertShortestFloat(Math.nextUp(v));
+            assertShortestFloat(Math.nextDown(v));
+        }
+        for (int bits = 1; bits < 100; bits++)
+            assertShortestFloat(Float.intBitsToFloat(bits));
+    }
+
+    private static String writeDouble(double v) {
+        byte[] buf = new byte[ShortestDecimal.MAX_NUM_BYTES];
+        int end = ShortestDecimal.writeDouble(v, buf, 0);
+        return new String(buf, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    private static String writeFloat(float v) {
+        byte[] buf = new byte[ShortestDecimal.MAX_NUM_BYTES];
+        int end = ShortestDecimal.writeFloat(v, buf, 0);
+        return new String(buf, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /* Checks that v parses back from its text, whose digits are no more than Double.toString's (or two) and no more than needed */
+    private static void assertShortestDouble(double v) {
+        String text = writeDouble(v);
+        assertEquals(text, Double.doubleToLongBits(v), Double.doubleToLongBits(Double.parseDouble(text)));
+        assertLayout(text);
+        if (v == 0)
+            return;
+
+        // like Double.toString, two digits are kept when one would do, the closer ones (4.9E-324)
+        int numDigits = numDigits(text);
+        assertTrue(text + " is longer than " + Double.toString(v), numDigits <= Math.max(numDigits(Double.toString(v)), 2));
+        if (numDigits > 2) {
+            BigDecimal exact = new BigDecimal(v);
+            for (RoundingMode mode : new RoundingMode[] { RoundingMode.FLOOR, RoundingMode.CEILING }) {
+                BigDecimal shorter = exact.round(new MathContext(numDigits - 1, mode));
+                assertFalse(text + " is not the shortest, " + shorter + " parses to it", shorter.doubleValue() == v);
+            }
+        }
+    }
+
+    /* Float counterpart of assertShortestDouble */
+    private static void assertShortestFloat(float v) {
+        String text = writeFloat(v);
+        assertEquals(text, Float.floatToIntBits(v), Float.floatToIntBits(Float.parseFloat(text)));
+        assertLayout(text);
+        if (v == 0)
+            return;
+
+        int numDigits = numDigits(text);
+        assertTrue(text + " is longer than " + Float.toString(v), numDigits <= Math.max(numDigits(Float.toString(v)), 2));
+        if (numDigits > 2) {
+            BigDecimal exact = new BigDecimal(v);
+            for (RoundingMode mode : new RoundingMode[] { RoundingMode.FLOOR, RoundingMode.CEILING }) {
+                BigDecimal shorter = exact.round(new MathContext(numDigits - 1, mode));
+                assertFalse(text + " is not the shortest, " + shorter + " parses to it", shorter.floatValue() == v);
+            }
+        }
+    }
+
+    /* Checks that text is plain exactly when its leading digit exponent is from -7 to 20 */
+    private static void assertLayout(String text) {
+        assertTrue(text, text.length() <= ShortestDecimal.MAX_NUM_BYTES);
+        BigDecimal value = new BigDecimal(text);
+        if (value.signum() == 0) {
+            assertFalse(text, text.contains("E"));
+            return;
+        }
+        int dexp = value.precision() - value.scale() - 1;
+        assertEquals(text, dexp < -7 || dexp > 20, text.contains("E"));
+        assertFalse(text, text.endsWith(".0") || text.contains(".E"));
+    }
+
+    /* Number of significant digits of a decimal text */
+    private static int numDigits(String text) {
+        return new BigDecimal(text).stripTrailingZeros().precision();
+    }
+}
@@ -0,0 +1,204 @@
+package edu.msViz.mzTree;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class DecoderTest
+{
+    @Test
+    public void decodesDoublesAndFloats() throws XMLStreamException, DataFormatException
+    {
+        double[] values = { 0, 1.5, -2.25, 1e300, 123456.789 };
+        XMLStreamReader reader = binaries(littleEndian(values, true, false), littleEndian(values, false, false));
+        Decoder decoder = Decoder.forCurrentThread();
+        decoder.clearBase64();
+
+        Decoder.Values doubles = new Decoder.Values();
+        decoder.decode(nextBinary(reader, decoder), false, true, doubles);
+        assertValues(values, doubles, 0);
+
+        Decoder.Values floats = new Decoder.Values();
+        decoder.decode(nextBinary(reader, decoder), false, false, floats);
+        double[] asFloats = new double[values.length];
+        for (int i = 0; i < values.length; i++)
+            asFloats[i] = (float) values[i];
+        assertValues(asFloats, floats, 0);
+    }
+
+    @Test
+    public void decodesCompressedData() throws XMLStreamException, DataFormatException
+    {
+        double[] values = ramp(20000);
+        XMLStreamReader reader = binaries(littleEndian(values, true, true));
+        Decoder decoder = Decoder.forCurrentThread();
+        decoder.clearBase64();
+
+        Decoder.Values decoded = new Decoder.Values();
+        decoder.decode(nextBinary(reader, decoder), true, true, decoded);
+        assertValues(values, decoded, 0);
+    }
+
+    @Test
+    public void viewsOfOneSpectrumStayValid() throws XMLStreamException, DataFormatException
+    {
+        // the second array grows the scratch buffer past the first array's bytes
+        double[] mz = ramp(100);
+        double[] intensity = ramp(50000);
+        XMLStreamReader reader = binaries(littleEndian(mz, true, false), littleEndian(intensity, true, false));
+        Decoder decoder = Decoder.forCurrentThread();
+        decoder.clearBase64();
+
+        ByteBuffer mzData = nextBinary(reader, decoder);
+        ByteBuffer intensityData = nextBinary(reader, decoder);
+
+        Decoder.Values decoded = new Decoder.Values();
+        decoder.decode(intensityData, false, true, decoded);
+        assertValues(intensity, decoded, 0);
+        decoder.decode(mzData, false, true, decoded);
+        assertValues(mz, decoded, 0);
+    }
+
+    @Test
+    public void growsValuesAndReusesThem() throws XMLStreamException, DataFormatException
+    {
+        double[] small = ramp(10);
+        double[] large = ramp(3000);
+        XMLStreamReader reader = binaries(littleEndian(small, true, false), littleEndian(large, true, false),
+                littleEndian(small, true, false));
+        Decoder decoder = Decoder.forCurrentThread();
+        decoder.clearBase64();
+
+        Decoder.Values decoded = new Decoder.Values();
+        decoder.decode(nextBinary(reader, decoder), false, true, decoded);
+        assertValues(small, decoded, 0);
+
+        decoder.decode(nextBinary(reader, decoder), false, true, decoded);
+        assertValues(large, decoded, 0);
+        double[] grown = decoded.array;
+
+        // a smaller array is decoded into the grown one
+        decoder.decode(nextBinary(reader, decoder), false, true, decoded);
+        assertValues(small, decoded, 0);
+        assertSame(grown, decoded.array);
+    }
+
+    @Test
+    public void skipsWhitespaceWithinText() throws XMLStreamException, DataFormatException
+    {
+        double[] values = ramp(7);
+        String text = littleEndian(values, true, false);
+        StringBuilder spaced = new StringBuilder();
+        for (int i = 0; i < text.length(); i += 10)
+            spaced.append(text, i, Math.min(i + 10, text.length())).append("\n  ");
+        XMLStreamReader reader = binaries(spaced.toString());
+        Decoder decoder = Decoder.forCurrentThread();
+        decoder.clearBase64();
+
+        Decoder.Values decoded = new Decoder.Values();
+        decoder.decode(nextBinary(reader, decoder), false, true, decoded);
+        assertValues(values, decoded, 0);
+    }
+
+    @Test
+    public void rejectsInvalidBase64() throws XMLStreamException
+    {
+        for (String text : new String[] { "AAAA*AAA", "AAAAA" })
+        {
+            XMLStreamReader reader = binaries(text);
+            Decoder decoder = Decoder.forCurrentThread();
+            try {
+                nextBinary(reader, decoder);
+                fail("Decoded invalid base64 " + text);
+            }
+            catch (DataFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedCompressedData() throws XMLStreamException, DataFormatException
+    {
+        byte[] compressed = Base64.getDecoder().decode(littleEndian(ramp(1000), true, true));
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        try {
+            Decoder.forCurrentThread().decode(ByteBuffer.wrap(truncated), true, true, new Decoder.Values());
+            fail("Decoded truncated zlib data");
+        }
+        catch (DataFormatException e) {
+            // expected
+        }
+    }
+
+    private static void assertValues(double[] expected, Decoder.Values actual, double delta)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], actual.array[i], delta);
+    }
+
+    private static double[] ramp(int numValues)
+    {
+        double[] values = new double[numValues];
+        for (int i = 0; i < numValues; i++)
+            values[i] = 100 + i * 0.125;
+        return values;
+    }
+
+    /* Base64 text of little endian values, zlib compressed if compress */
+    private static String littleEndian(double[] values, boolean isDouble, boolean compress)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * (isDouble ? 8 : 4)).order(ByteOrder.LITTLE_ENDIAN);
+        for (double value : values)
+        {
+            if (isDouble)
+                buf.putDouble(value);
+            else
+                buf.putFloat((float) value);
+        }
+        byte[] bytes = buf.array();
+
+        if (compress)
+        {
+            Deflater deflater = new Deflater();
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] compressed = new byte[bytes.length + 64];
+            int numBytes = deflater.deflate(compressed);
+            deflater.end();
+            bytes = new byte[numBytes];
+            System.arraycopy(compressed, 0, bytes, 0, numBytes);
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /* Reader over binary elements holding the texts */
+    private static XMLStreamReader binaries(String... texts) throws XMLStreamException
+    {
+        StringBuilder sb = new StringBuilder("<binaryDataArrayList>");
+        for (String text : texts)
+            sb.append("<binaryDataArray><binary>").append(text).append("</binary></binaryDataArray>");
+        sb.append("</binaryDataArrayList>");
+        return XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(sb.toString()));
+    }
+
+    /* Reads the next binary element */
+    private static ByteBuffer nextBinary(XMLStreamReader reader, Decoder decoder) throws XMLStreamException, DataFormatException
+    {
+        while (reader.next() != XMLStreamReader.START_ELEMENT || !reader.getLocalName().equals("binary"))
+            continue;
+        return decoder.readBase64(reader);
+    }
+}
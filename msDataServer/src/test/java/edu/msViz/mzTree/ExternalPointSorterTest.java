@@ -0,0 +1,147 @@
+package edu.msViz.mzTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExternalPointSorterTest
+{
+    private static final int NUM_POINTS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mergesRunsByRtThenMzStably() throws IOException
+    {
+        assertSortsLikeStableSort(true);
+    }
+
+    @Test
+    public void mergesRunsByMzThenRtStably() throws IOException
+    {
+        assertSortsLikeStableSort(false);
+    }
+
+    @Test
+    public void sortsInMemoryWithoutRuns() throws IOException
+    {
+        double[][] points = points(new Random(3));
+        try (ExternalPointSorter sorter = new ExternalPointSorter(true, NUM_POINTS + 1, this.folder.getRoot().toPath()))
+        {
+            for (double[] point : points)
+                sorter.add(point[0], (float) point[1], point[2], (int) point[3]);
+
+            assertSequence(stableSort(points, true), sorter.sorted());
+            assertEquals(0, sorter.getNumRuns());
+        }
+        assertEquals(0, this.folder.getRoot().list().length);
+    }
+
+    @Test
+    public void addedRunsKeepAddOrder() throws IOException
+    {
+        double[][] points = points(new Random(11));
+        try (ExternalPointSorter sorter = new ExternalPointSorter(true, 64, this.folder.getRoot().toPath()))
+        {
+            // points added one at a time, as a whole run, then one at a time again
+            int third = NUM_POINTS / 3;
+            for (int i = 0; i < third; i++)
+                sorter.add(points[i][0], (float) points[i][1], points[i][2], (int) points[i][3]);
+
+            PointStore run = new PointStore();
+            for (int i = third; i < 2 * third; i++)
+                run.add(0, points[i][0], (float) points[i][1], points[i][2], (int) points[i][3]);
+            sorter.addRun(run);
+
+            for (int i = 2 * third; i < NUM_POINTS; i++)
+                sorter.add(points[i][0], (float) points[i][1], points[i][2], (int) points[i][3]);
+
+            assertSequence(stableSort(points, true), sorter.sorted());
+        }
+    }
+
+    @Test
+    public void closeDeletesRuns() throws IOException
+    {
+        File root = this.folder.getRoot();
+        double[][] points = points(new Random(5));
+        ExternalPointSorter sorter = new ExternalPointSorter(false, 100, root.toPath());
+        for (double[] point : points)
+            sorter.add(point[0], (float) point[1], point[2], (int) point[3]);
+
+        ExternalPointSorter.PointCursor cursor = sorter.sorted();
+        assertTrue(cursor.next());
+        assertEquals(NUM_POINTS / 100, sorter.getNumRuns());
+        assertEquals(sorter.getNumRuns(), root.list().length);
+
+        // closing mid-merge closes the readers before deleting their runs
+        sorter.close();
+        assertEquals(0, root.list().length);
+    }
+
+    private void assertSortsLikeStableSort(boolean sortByRt) throws IOException
+    {
+        double[][] points = points(new Random(sortByRt ? 1 : 2));
+        double[][] expected = stableSort(points, sortByRt);
+
+        // every run size, including one point per run, merges to the same sequence
+        for (int runSize : new int[] { 1, 7, 100, 999, NUM_POINTS, NUM_POINTS * 2 })
+        {
+            try (ExternalPointSorter sorter = new ExternalPointSorter(sortByRt, runSize, this.folder.getRoot().toPath()))
+            {
+                for (double[] point : points)
+                    sorter.add(point[0], (float) point[1], point[2], (int) point[3]);
+
+                assertSequence(expected, sorter.sorted());
+            }
+        }
+    }
+
+    /* Points whose keys collide often, meta1 holds the order they are added in */
+    private static double[][] points(Random random)
+    {
+        double[][] points = new double[NUM_POINTS][];
+        for (int i = 0; i < NUM_POINTS; i++)
+            points[i] = new double[] { 100 + random.nextInt(20) * 0.5, (float) (random.nextInt(15) * 0.25), random.nextInt(1000), i };
+        return points;
+    }
+
+    private static double[][] stableSort(double[][] points, boolean sortByRt)
+    {
+        double[][] sorted = points.clone();
+        Comparator<double[]> byMz = Comparator.comparingDouble(point -> point[0]);
+        Comparator<double[]> byRt = Comparator.comparingDouble(point -> point[1]);
+        Arrays.sort(sorted, sortByRt ? byRt.thenComparing(byMz) : byMz.thenComparing(byRt));
+        return sorted;
+    }
+
+    private static void assertSequence(double[][] expected, ExternalPointSorter.PointCursor cursor) throws IOException
+    {
+        List<Integer> expectedOrder = new ArrayList<>();
+        List<Integer> order = new ArrayList<>();
+        for (double[] point : expected)
+        {
+            assertTrue(cursor.next());
+            assertEquals(point[0], cursor.mz, 0);
+            assertEquals(point[1], cursor.rt, 0);
+            assertEquals(point[2], cursor.intensity, 0);
+            expectedOrder.add((int) point[3]);
+            order.add(cursor.meta1);
+        }
+        assertFalse(cursor.next());
+
+        // equal keys keep the order their points were added in
+        assertEquals(expectedOrder, order);
+    }
+}
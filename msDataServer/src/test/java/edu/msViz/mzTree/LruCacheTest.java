@@ -0,0 +1,198 @@
+package edu.msViz.mzTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class LruCacheTest
+{
+    @Test
+    public void evictsLeastRecentlyUsedFirst()
+    {
+        LruCache<String, String> cache = new LruCache<>(3, String::length);
+        List<String> evicted = listenForEvictions(cache);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+
+        // a becomes the most recently used, b the least
+        assertEquals("1", cache.get("a"));
+        cache.put("d", "4");
+
+        assertEquals(Arrays.asList("b"), evicted);
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("c"));
+        assertTrue(cache.contains("d"));
+        assertEquals(3, cache.getWeight());
+    }
+
+    @Test
+    public void containsDoesNotChangeRecency()
+    {
+        LruCache<String, String> cache = new LruCache<>(2, String::length);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertTrue(cache.contains("a"));
+        cache.put("c", "3");
+
+        assertFalse(cache.contains("a"));
+        assertEquals(0, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test
+    public void evictsByWeight()
+    {
+        LruCache<String, String> cache = new LruCache<>(10, String::length);
+        List<String> evicted = listenForEvictions(cache);
+        cache.put("a", "xxxx");
+        cache.put("b", "xxxx");
+        cache.put("c", "xx");
+        assertEquals(10, cache.getWeight());
+
+        // 6 more units evict a and b, c still fits
+        cache.put("d", "xxxxxx");
+        assertEquals(Arrays.asList("a", "b"), evicted);
+        assertEquals(8, cache.getWeight());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void replacingValueUpdatesWeight()
+    {
+        LruCache<String, String> cache = new LruCache<>(10, String::length);
+        cache.put("a", "xxxxxxxx");
+        cache.put("a", "xx");
+        assertEquals(2, cache.getWeight());
+        assertEquals(1, cache.size());
+        assertEquals("xx", cache.get("a"));
+    }
+
+    @Test
+    public void rejectsValueHeavierThanCache()
+    {
+        LruCache<String, String> cache = new LruCache<>(3, String::length);
+        List<String> evicted = listenForEvictions(cache);
+        cache.put("a", "1");
+        cache.put("big", "xxxx");
+
+        // the heavy value goes straight to the listener, nothing else is evicted
+        assertEquals(Arrays.asList("big"), evicted);
+        assertFalse(cache.contains("big"));
+        assertTrue(cache.contains("a"));
+    }
+
+    @Test
+    public void pinnedEntriesAreNeverEvicted()
+    {
+        LruCache<String, String> cache = new LruCache<>(4, String::length);
+        List<String> evicted = listenForEvictions(cache);
+        cache.pin("p", "xx");
+        cache.put("a", "x");
+        cache.put("b", "x");
+        cache.put("c", "x");
+
+        assertEquals(Arrays.asList("a"), evicted);
+        assertTrue(cache.contains("p"));
+        assertEquals(4, cache.getWeight());
+
+        // a put of a pinned key leaves the pinned value in place
+        cache.put("p", "x");
+        assertEquals("xx", cache.get("p"));
+    }
+
+    @Test
+    public void pinningBeyondHalfTheWeightCachesNormally()
+    {
+        LruCache<String, String> cache = new LruCache<>(4, String::length);
+        cache.pin("p", "xx");
+        cache.pin("q", "x");
+        cache.put("a", "x");
+        cache.put("b", "x");
+
+        // q could not be pinned, so it is evicted like any other entry
+        assertTrue(cache.contains("p"));
+        assertFalse(cache.contains("q"));
+    }
+
+    @Test
+    public void pinningCachedEntryMovesIt()
+    {
+        LruCache<String, String> cache = new LruCache<>(4, String::length);
+        cache.put("a", "x");
+        cache.pin("a", "x");
+        cache.put("b", "xx");
+        cache.put("c", "x");
+        cache.put("d", "x");
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.getWeight());
+    }
+
+    @Test
+    public void clearRemovesPinnedEntries()
+    {
+        LruCache<String, String> cache = new LruCache<>(4, String::length);
+        cache.pin("p", "xx");
+        cache.put("a", "x");
+        cache.clear();
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertNull(cache.get("p"));
+
+        // the pinned budget is free again
+        cache.pin("q", "xx");
+        cache.put("b", "xx");
+        cache.put("c", "xx");
+        assertTrue(cache.contains("q"));
+    }
+
+    @Test
+    public void removeFreesWeight()
+    {
+        LruCache<String, String> cache = new LruCache<>(4, String::length);
+        List<String> evicted = listenForEvictions(cache);
+        cache.pin("p", "xx");
+        cache.put("a", "xx");
+
+        assertEquals("xx", cache.remove("a"));
+        assertEquals("xx", cache.remove("p"));
+        assertNull(cache.remove("b"));
+        assertEquals(0, cache.getWeight());
+        assertTrue(evicted.isEmpty());
+
+        // the pinned budget is free again
+        cache.pin("q", "xx");
+        cache.put("b", "xx");
+        cache.put("c", "xx");
+        assertTrue(cache.contains("q"));
+    }
+
+    @Test
+    public void countsHitsAndMisses()
+    {
+        LruCache<String, String> cache = new LruCache<>(4, String::length);
+        cache.put("a", "x");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    private static List<String> listenForEvictions(LruCache<String, String> cache)
+    {
+        List<String> evicted = new ArrayList<>();
+        cache.setEvictionListener((key, value) -> evicted.add(key));
+        return evicted;
+    }
+}
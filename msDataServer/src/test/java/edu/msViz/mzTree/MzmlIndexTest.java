@@ -0,0 +1,176 @@
+package edu.msViz.mzTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.function.UnaryOperator;
+import java.util.zip.DataFormatException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MzmlIndexTest
+{
+    private static final int NUM_SPECTRA = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsSpectrumOffsets() throws IOException, XMLStreamException, DataFormatException
+    {
+        File file = this.writeIndexed(offsets -> offsets, null);
+        MzmlIndex index = MzmlIndex.read(file.getPath());
+        assertNotNull(index);
+        assertEquals(NUM_SPECTRA, index.size());
+
+        // spectra may be opened in any order
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            for (int i = NUM_SPECTRA - 1; i >= 0; i--)
+            {
+                XMLStreamReader reader = index.openSpectrum(channel, i);
+                assertEquals("spectrum", reader.getLocalName());
+                assertEquals("scan=" + (i + 1), reader.getAttributeValue(null, "id"));
+
+                // the spectrum's own content is read, up to its end
+                int numCvParams = 0;
+                while (reader.next() != XMLStreamReader.END_ELEMENT || !reader.getLocalName().equals("spectrum"))
+                    if (reader.getEventType() == XMLStreamReader.START_ELEMENT && reader.getLocalName().equals("cvParam"))
+                        numCvParams++;
+                assertEquals(1, numCvParams);
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void rejectsUnindexedFile() throws IOException
+    {
+        File file = this.folder.newFile("plain.mzML");
+        Files.write(file.toPath(), document(new long[0], -1, false).getBytes(StandardCharsets.US_ASCII));
+        assertNull(MzmlIndex.read(file.getPath()));
+    }
+
+    @Test
+    public void rejectsMisorderedOffsets() throws IOException
+    {
+        File file = this.writeIndexed(offsets -> {
+            long swap = offsets[1];
+            offsets[1] = offsets[2];
+            offsets[2] = swap;
+            return offsets;
+        }, null);
+        assertNull(MzmlIndex.read(file.getPath()));
+    }
+
+    @Test
+    public void rejectsOffsetOffSpectrum() throws IOException
+    {
+        File file = this.writeIndexed(offsets -> {
+            offsets[2] += 3;
+            return offsets;
+        }, null);
+        assertNull(MzmlIndex.read(file.getPath()));
+    }
+
+    @Test
+    public void rejectsOffsetBeyondIndexList() throws IOException
+    {
+        File file = this.writeIndexed(offsets -> {
+            offsets[NUM_SPECTRA - 1] = 1L << 40;
+            return offsets;
+        }, null);
+        assertNull(MzmlIndex.read(file.getPath()));
+    }
+
+    @Test
+    public void rejectsMalformedOffset() throws IOException
+    {
+        File file = this.writeIndexed(offsets -> offsets, "12x4");
+        assertNull(MzmlIndex.read(file.getPath()));
+    }
+
+    @Test
+    public void rejectsIndexListOffsetBeyondFile() throws IOException
+    {
+        File file = this.folder.newFile("beyond.mzML");
+        Files.write(file.toPath(), document(new long[NUM_SPECTRA], 1L << 40, true).getBytes(StandardCharsets.US_ASCII));
+        assertNull(MzmlIndex.read(file.getPath()));
+    }
+
+    @Test
+    public void rejectsEmptyIndex() throws IOException
+    {
+        File file = this.writeIndexed(offsets -> new long[0], null);
+        assertNull(MzmlIndex.read(file.getPath()));
+    }
+
+    @Test
+    public void skipsSpectraWithoutArrays() throws IOException, XMLStreamException, DataFormatException
+    {
+        // the spectra have no binaryDataArray, whether decoded in file order or by index
+        File plain = this.folder.newFile("plain.mzML");
+        Files.write(plain.toPath(), document(new long[0], -1, false).getBytes(StandardCharsets.US_ASCII));
+        for (File file : new File[] { plain, this.writeIndexed(offsets -> offsets, null) })
+        {
+            try (MzmlParser parser = new MzmlParser(file.getPath()))
+            {
+                assertEquals(0, parser.readAllData().size());
+            }
+        }
+    }
+
+    /* Writes an indexed file whose spectrum offsets are edited, and whose first offset is replaced by firstOffsetText if not null */
+    private File writeIndexed(UnaryOperator<long[]> editOffsets, String firstOffsetText) throws IOException
+    {
+        // the index follows the spectra, so its contents do not move them
+        String placeholder = document(new long[0], 0, true);
+        long[] offsets = new long[NUM_SPECTRA];
+        for (int i = 0; i < NUM_SPECTRA; i++)
+            offsets[i] = placeholder.indexOf("<spectrum index=\"" + i + "\"");
+
+        long[] edited = editOffsets.apply(offsets.clone());
+        String indexed = document(edited, 0, true);
+        long indexListOffset = indexed.indexOf("<indexList ");
+        indexed = document(edited, indexListOffset, true);
+        if (firstOffsetText != null)
+            indexed = indexed.replaceFirst(">" + edited[0] + "</offset>", ">" + firstOffsetText + "</offset>");
+
+        File file = this.folder.newFile();
+        Files.write(file.toPath(), indexed.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /* An mzML document of NUM_SPECTRA spectra, wrapped in indexedmzML with the given offsets if indexed */
+    private static String document(long[] offsets, long indexListOffset, boolean indexed)
+    {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append(indexed ? "<indexedmzML>\n" : "");
+        sb.append("<mzML>\n<run id=\"run\">\n<spectrumList count=\"" + NUM_SPECTRA + "\">\n");
+        for (int i = 0; i < NUM_SPECTRA; i++)
+        {
+            sb.append("<spectrum index=\"" + i + "\" id=\"scan=" + (i + 1) + "\" defaultArrayLength=\"0\">\n");
+            sb.append("<cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"1\"/>\n");
+            sb.append("</spectrum>\n");
+        }
+        sb.append("</spectrumList>\n</run>\n</mzML>\n");
+        if (!indexed)
+            return sb.toString();
+
+        sb.append("<indexList count=\"1\">\n<index name=\"spectrum\">\n");
+        for (int i = 0; i < offsets.length; i++)
+            sb.append("<offset idRef=\"scan=" + (i + 1) + "\">" + offsets[i] + "</offset>\n");
+        sb.append("</index>\n</indexList>\n");
+        sb.append("<indexListOffset>" + indexListOffset + "</indexListOffset>\n</indexedmzML>\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,57 @@
+package edu.msViz.mzTree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class OffHeapBlockCacheTest
+{
+    // ID and record bytes of a point held off heap
+    private static final int NUM_BYTES_PER_POINT = 4 + MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+
+    @Test
+    public void takeDecodesAndDropsBlock()
+    {
+        OffHeapBlockCache cache = new OffHeapBlockCache(10 * NUM_BYTES_PER_POINT);
+        PointStore block = block(3);
+        cache.put(7, block);
+        assertEquals(3 * NUM_BYTES_PER_POINT, cache.getBlocks().getWeight());
+
+        PointStore taken = cache.take(7);
+        assertEquals(block.size(), taken.size());
+        for (int i = 0; i < block.size(); i++)
+        {
+            assertEquals(block.getPointID(i), taken.getPointID(i));
+            assertEquals(block.getMz(i), taken.getMz(i), 0);
+            assertEquals(block.getRt(i), taken.getRt(i), 0);
+            assertEquals(block.getIntensity(i), taken.getIntensity(i), 0);
+            assertEquals(block.getMeta1(i), taken.getMeta1(i));
+        }
+
+        // a promoted block no longer counts against the off-heap budget
+        assertFalse(cache.getBlocks().contains(7));
+        assertEquals(0, cache.getBlocks().getWeight());
+        assertNull(cache.take(7));
+    }
+
+    @Test
+    public void skipsBlockLargerThanBudget()
+    {
+        OffHeapBlockCache cache = new OffHeapBlockCache(2 * NUM_BYTES_PER_POINT);
+        cache.put(1, block(3));
+        assertEquals(0, cache.getBlocks().size());
+
+        cache.put(2, block(2));
+        assertTrue(cache.getBlocks().contains(2));
+    }
+
+    private static PointStore block(int numPoints)
+    {
+        PointStore block = new PointStore(numPoints);
+        for (int i = 0; i < numPoints; i++)
+            block.add(100 + i, 400.25 + i, 12.5f + i, 1000.0 * (i + 1), i % 2);
+        return block;
+    }
+}
@@ -0,0 +1,152 @@
+package edu.msViz.mzTree.storage;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class PointIDCodecTest
+{
+    @Test
+    public void roundTripsEmpty() throws DataFormatException
+    {
+        assertRoundTrip(new int[0]);
+    }
+
+    @Test
+    public void encodesContiguousBlockAsOneRun() throws DataFormatException
+    {
+        int[] pointIDs = new int[5000];
+        for (int i = 0; i < pointIDs.length; i++)
+            pointIDs[i] = 123456 + i;
+
+        byte[] bytes = assertRoundTrip(pointIDs);
+        assertEquals(PointIDCodec.ENCODING_RUNS, bytes[0]);
+        // tag, count and a single (gap, length) pair
+        assertEquals(1 + 2 + 3 + 2, bytes.length);
+    }
+
+    @Test
+    public void roundTripsRunsWithBackwardGaps() throws DataFormatException
+    {
+        int[] pointIDs = {
+            100, 101, 102, 103, 104,
+            50, 51, 52, 53, 54, 55,
+            1000, 1001, 1002, 1003,
+            0, 1, 2, 3, 4, 5, 6
+        };
+
+        byte[] bytes = assertRoundTrip(pointIDs);
+        assertEquals(PointIDCodec.ENCODING_RUNS, bytes[0]);
+    }
+
+    @Test
+    public void roundTripsAscendingDeltas() throws DataFormatException
+    {
+        int[] pointIDs = new int[1000];
+        Random random = new Random(5);
+        for (int i = 1; i < pointIDs.length; i++)
+            pointIDs[i] = pointIDs[i-1] + 2 + random.nextInt(100);
+
+        byte[] bytes = assertRoundTrip(pointIDs);
+        assertEquals(PointIDCodec.ENCODING_DELTA, bytes[0]);
+        // small ascending gaps take a byte or two each
+        assertTrue(bytes.length < 2 * pointIDs.length);
+    }
+
+    @Test
+    public void roundTripsNegativeDeltas() throws DataFormatException
+    {
+        int[] pointIDs = { 500, 10, 400, 20, 300, 30, 200, 40, 100, 50 };
+
+        byte[] bytes = assertRoundTrip(pointIDs);
+        assertEquals(PointIDCodec.ENCODING_DELTA, bytes[0]);
+    }
+
+    @Test
+    public void roundTripsExtremeIDs() throws DataFormatException
+    {
+        assertRoundTrip(new int[] { Integer.MAX_VALUE, 0, Integer.MAX_VALUE, Integer.MIN_VALUE, -1, 1 });
+        assertRoundTrip(new int[] { Integer.MAX_VALUE - 2, Integer.MAX_VALUE - 1, Integer.MAX_VALUE,
+            Integer.MAX_VALUE - 2, Integer.MAX_VALUE - 1, Integer.MAX_VALUE, 7 });
+    }
+
+    @Test
+    public void roundTripsRandomIDs() throws DataFormatException
+    {
+        Random random = new Random(42);
+        for (int trial = 0; trial < 200; trial++)
+        {
+            int[] pointIDs = new int[random.nextInt(300)];
+            for (int i = 0; i < pointIDs.length; i++)
+            {
+                // mix runs, small and large steps in both directions
+                if (i > 0 && random.nextInt(3) == 0)
+                    pointIDs[i] = pointIDs[i-1] + 1;
+                else
+                    pointIDs[i] = random.nextInt(1 << (1 + random.nextInt(30)));
+            }
+            assertRoundTrip(pointIDs);
+        }
+    }
+
+    @Test
+    public void rejectsEmptyBlob()
+    {
+        assertCorrupt(new byte[0]);
+    }
+
+    @Test
+    public void rejectsUnknownTag()
+    {
+        assertCorrupt(new byte[] { 7, 1, 2 });
+    }
+
+    @Test
+    public void rejectsTruncatedBlobs() throws DataFormatException
+    {
+        int[] deltas = { 3, 900000, 12, 70000 };
+        int[] runs = { 10, 11, 12, 13, 14, 15, 100000, 100001, 100002, 100003 };
+        for (int[] pointIDs : new int[][] { deltas, runs })
+        {
+            byte[] bytes = PointIDCodec.encode(pointIDs);
+            for (int length = 0; length < bytes.length; length++)
+                assertCorrupt(Arrays.copyOf(bytes, length));
+        }
+    }
+
+    @Test
+    public void rejectsCountBeyondBlob()
+    {
+        // delta blob claiming 2^31 - 1 IDs but holding one
+        assertCorrupt(new byte[] { PointIDCodec.ENCODING_DELTA, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 2 });
+        // run blob claiming more IDs than its runs hold
+        assertCorrupt(new byte[] { PointIDCodec.ENCODING_RUNS, 10, 0, 4 });
+        // run blob whose runs overflow its count
+        assertCorrupt(new byte[] { PointIDCodec.ENCODING_RUNS, 2, 0, 4 });
+        // negative count
+        assertCorrupt(new byte[] { PointIDCodec.ENCODING_DELTA, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 2 });
+    }
+
+    private static byte[] assertRoundTrip(int[] pointIDs) throws DataFormatException
+    {
+        byte[] bytes = PointIDCodec.encode(pointIDs);
+        assertArrayEquals(pointIDs, PointIDCodec.decode(bytes));
+        return bytes;
+    }
+
+    private static void assertCorrupt(byte[] bytes)
+    {
+        try {
+            PointIDCodec.decode(bytes);
+            fail("Decoded corrupt blob " + Arrays.toString(bytes));
+        }
+        catch (DataFormatException e) {
+            // expected
+        }
+    }
+}